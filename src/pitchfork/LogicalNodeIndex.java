@@ -0,0 +1,808 @@
+/*
+ * Copyright (C) 2019. Tim Vaughan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pitchfork;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Index of the logical nodes of a pitchfork tree, providing constant-time
+ * access to the true nodes, the logical node containing each node and the
+ * logical children of each logical node.
+ *
+ * Operators which modify the tree keep the index up to date by calling
+ * update() for each node whose height, parent or children they change.
+ * The index also records the height and parent of every node as last
+ * indexed.  At the start of each proposal by a PitchforkTreeOperator,
+ * and after each rejection, every node is compared with this record
+ * and those which differ are refreshed.  This brings the index back
+ * into line after the tree is restored, whether or not the rejection
+ * was reported, and after changes made by any other operator.  The
+ * index is rebuilt lazily from the tree the first time it is used.
+ */
+public class LogicalNodeIndex {
+
+    private static final Map<Tree, WeakReference<LogicalNodeIndex>> sharedIndices =
+            new WeakHashMap<>();
+
+    Tree tree;
+    int nLeaves;
+
+    /* Numbers of the true nodes: all leaves, together with the internal
+       nodes which either are the root or lie below edges of non-zero
+       length.  Leaves occupy positions 0 to nLeaves-1, with the true
+       internal nodes following in no particular order. */
+    int[] trueNodeNrs, trueNodePositions;
+    int nTrueNodes;
+
+    /* Logical node to which each node belongs, and the logical children
+       of each logical node. */
+    int[] logicalNodeNrs;
+    int[][] logicalChildNrs;
+    int[] logicalChildCounts;
+
+    /* Scratch space for traversing groups, and for ensuring each group
+       is relabeled only once per refresh. */
+    int[] stack, relabelStamps;
+    int relabelStamp;
+
+    /* Nodes passed to update() which have not yet been refreshed. */
+    int[] updatedNodeNrs;
+    int nUpdatedNodes;
+
+    /* Height and parent number (-1 for the root) of each node when it
+       was last indexed, together with the root at that time. */
+    double[] indexedHeights;
+    int[] indexedParentNrs;
+    Node indexedRoot;
+
+    boolean needsRebuild, needsCheck;
+
+    /* Numbers of the true non-root nodes in order of the height of the
+       top of the edge above each, together with these heights.  Only
+       maintained once edgeOrderEnabled is set by the first query. */
+    int[] orderedEdgeNrs;
+    double[] orderedEdgeTops, edgeTops;
+    int nOrderedEdges;
+    boolean edgeOrderEnabled;
+
+    /* Edges which may be expanded (true non-root nodes whose parents
+       belong to polytomies) or collapsed (true non-root nodes whose
+       parents do not belong to polytomies and whose sisters are internal
+       nodes no younger than themselves) by ExpandCollapseOperator.  Each
+       set is stored as an array of node numbers together with the
+       position of each node in it, so that nodes can be added, removed
+       and drawn in constant time.  Only maintained once
+       polytomyEdgesEnabled is set by the first query. */
+    int[] expandableEdgeNrs, expandableEdgePositions;
+    int[] collapsableEdgeNrs, collapsableEdgePositions;
+    int nExpandableEdges, nCollapsableEdges;
+    boolean polytomyEdgesEnabled;
+
+    /* Scratch space for sorting edges during a rebuild. */
+    int[] sortScratchNrs;
+    double[] sortScratchTops;
+
+    public LogicalNodeIndex(Tree tree) {
+        this.tree = tree;
+        needsRebuild = true;
+    }
+
+    /**
+     * Obtain an index shared by all users of the given tree, creating it
+     * if necessary.
+     *
+     * @param tree tree to index
+     * @return index for tree
+     */
+    public static LogicalNodeIndex getIndex(Tree tree) {
+        synchronized (sharedIndices) {
+            WeakReference<LogicalNodeIndex> ref = sharedIndices.get(tree);
+            LogicalNodeIndex index = ref != null ? ref.get() : null;
+
+            if (index == null) {
+                index = new LogicalNodeIndex(tree);
+                sharedIndices.put(tree, new WeakReference<>(index));
+            }
+
+            return index;
+        }
+    }
+
+    private void allocateArrays(int nodeCount) {
+        nLeaves = tree.getLeafNodeCount();
+
+        trueNodeNrs = new int[nodeCount];
+        trueNodePositions = new int[nodeCount];
+        logicalNodeNrs = new int[nodeCount];
+        logicalChildNrs = new int[nodeCount][];
+        logicalChildCounts = new int[nodeCount];
+        stack = new int[nodeCount];
+        relabelStamps = new int[nodeCount];
+        updatedNodeNrs = new int[nodeCount];
+        indexedHeights = new double[nodeCount];
+        indexedParentNrs = new int[nodeCount];
+        orderedEdgeNrs = new int[nodeCount];
+        orderedEdgeTops = new double[nodeCount];
+        edgeTops = new double[nodeCount];
+        sortScratchNrs = new int[nodeCount];
+        sortScratchTops = new double[nodeCount];
+        expandableEdgeNrs = new int[nodeCount];
+        expandableEdgePositions = new int[nodeCount];
+        collapsableEdgeNrs = new int[nodeCount];
+        collapsableEdgePositions = new int[nodeCount];
+
+        needsRebuild = true;
+    }
+
+    /**
+     * Ensure the index is consistent with the tree.
+     */
+    private void validate() {
+        if (logicalNodeNrs == null || tree.getNodeCount() != logicalNodeNrs.length)
+            allocateArrays(tree.getNodeCount());
+
+        if (!needsRebuild) {
+            if (needsCheck) {
+                checkTree();
+            } else if (tree.getRoot() != indexedRoot) {
+                // Tree.setRoot() gives the new root the last node number
+                // by swapping numbers with the old root, so nodes updated
+                // before the swap were recorded under the wrong numbers.
+                addUpdatedNode(tree.getRoot().getNr());
+                addUpdatedNode(indexedRoot.getNr());
+            }
+        }
+
+        if (needsRebuild)
+            rebuild();
+        else if (nUpdatedNodes > 0)
+            refresh(0, nUpdatedNodes);
+
+        nUpdatedNodes = 0;
+        needsCheck = false;
+        indexedRoot = tree.getRoot();
+    }
+
+    /**
+     * Queue for refreshing every node whose height or parent differs from
+     * that recorded when it was last indexed.  Since each node has two
+     * children, any change to the children of a node also changes the
+     * parent of a child, so this catches every change to the tree.
+     */
+    private void checkTree() {
+        for (int nodeNr=0; nodeNr<indexedHeights.length; nodeNr++) {
+            Node node = tree.getNode(nodeNr);
+
+            if (node.getHeight() != indexedHeights[nodeNr]
+                    || getParentNr(node) != indexedParentNrs[nodeNr])
+                addUpdatedNode(nodeNr);
+        }
+    }
+
+    private void recordIndexedState(Node node) {
+        indexedHeights[node.getNr()] = node.getHeight();
+        indexedParentNrs[node.getNr()] = getParentNr(node);
+    }
+
+    private static int getParentNr(Node node) {
+        return node.isRoot() ? -1 : node.getParent().getNr();
+    }
+
+    private void addUpdatedNode(int nodeNr) {
+        if (nUpdatedNodes < updatedNodeNrs.length)
+            updatedNodeNrs[nUpdatedNodes++] = nodeNr;
+        else
+            needsRebuild = true;
+    }
+
+    private void rebuild() {
+        int nodeCount = tree.getNodeCount();
+
+        nTrueNodes = 0;
+        for (int nodeNr=0; nodeNr<nodeCount; nodeNr++) {
+            trueNodePositions[nodeNr] = -1;
+            updateTrueNodeStatus(tree.getNode(nodeNr));
+        }
+
+        for (int nodeNr=0; nodeNr<nodeCount; nodeNr++) {
+            Node node = tree.getNode(nodeNr);
+            if (Pitchforks.isLogicalNode(node))
+                relabelGroup(node);
+        }
+
+        if (edgeOrderEnabled)
+            rebuildEdgeOrder();
+
+        if (polytomyEdgesEnabled)
+            rebuildPolytomyEdges();
+
+        for (int nodeNr=0; nodeNr<nodeCount; nodeNr++)
+            recordIndexedState(tree.getNode(nodeNr));
+
+        needsRebuild = false;
+    }
+
+    /**
+     * Add node to or remove node from the set of true nodes, according
+     * to its current status.
+     *
+     * @param node node to update
+     */
+    private void updateTrueNodeStatus(Node node) {
+        int nodeNr = node.getNr();
+
+        if (nodeNr < nLeaves) {
+            if (trueNodePositions[nodeNr] < 0) {
+                trueNodeNrs[nodeNr] = nodeNr;
+                trueNodePositions[nodeNr] = nodeNr;
+                nTrueNodes += 1;
+            }
+            return;
+        }
+
+        boolean isTrue = Pitchforks.isLogicalNode(node);
+        int pos = trueNodePositions[nodeNr];
+
+        if (isTrue && pos < 0) {
+            trueNodeNrs[nTrueNodes] = nodeNr;
+            trueNodePositions[nodeNr] = nTrueNodes;
+            nTrueNodes += 1;
+        } else if (!isTrue && pos >= 0) {
+            nTrueNodes -= 1;
+            int lastNodeNr = trueNodeNrs[nTrueNodes];
+            trueNodeNrs[pos] = lastNodeNr;
+            trueNodePositions[lastNodeNr] = pos;
+            trueNodePositions[nodeNr] = -1;
+        }
+    }
+
+    /**
+     * Record the logical node of each member of the group rooted at the
+     * given logical node, and collect the logical children of the group.
+     *
+     * @param logicalNode logical node
+     */
+    private void relabelGroup(Node logicalNode) {
+        int logicalNodeNr = logicalNode.getNr();
+
+        int[] children = logicalChildNrs[logicalNodeNr];
+        int nChildren = 0;
+
+        int stackSize = 0;
+        stack[stackSize++] = logicalNodeNr;
+
+        while (stackSize > 0) {
+            Node node = tree.getNode(stack[--stackSize]);
+            logicalNodeNrs[node.getNr()] = logicalNodeNr;
+
+            for (int i=0; i<node.getChildCount(); i++) {
+                Node child = node.getChild(i);
+
+                if (Pitchforks.isLogicalNode(child)) {
+                    if (children == null || nChildren == children.length) {
+                        int[] newChildren = new int[Math.max(4, 2*nChildren)];
+                        if (children != null)
+                            System.arraycopy(children, 0, newChildren, 0, nChildren);
+                        children = newChildren;
+                    }
+                    children[nChildren++] = child.getNr();
+                } else {
+                    stack[stackSize++] = child.getNr();
+                }
+            }
+        }
+
+        logicalChildNrs[logicalNodeNr] = children;
+        logicalChildCounts[logicalNodeNr] = nChildren;
+    }
+
+    /**
+     * Bring the index into line with the tree in the neighbourhood of the
+     * updated nodes with indices between from and to-1.  This covers
+     * changes to the edges above these nodes and their children, and to
+     * the groups containing the nodes, their parents and their children.
+     *
+     * @param from index of first node to refresh
+     * @param to index one past the last node to refresh
+     */
+    private void refresh(int from, int to) {
+        for (int i=from; i<to; i++) {
+            Node node = tree.getNode(updatedNodeNrs[i]);
+
+            recordIndexedState(node);
+            for (int j=0; j<node.getChildCount(); j++)
+                recordIndexedState(node.getChild(j));
+
+            updateTrueNodeStatus(node);
+            for (int j=0; j<node.getChildCount(); j++)
+                updateTrueNodeStatus(node.getChild(j));
+
+            if (edgeOrderEnabled) {
+                updateEdgeOrder(node);
+                for (int j=0; j<node.getChildCount(); j++)
+                    updateEdgeOrder(node.getChild(j));
+            }
+        }
+
+        if (polytomyEdgesEnabled) {
+            for (int i=from; i<to; i++)
+                refreshPolytomyEdges(tree.getNode(updatedNodeNrs[i]));
+        }
+
+        relabelStamp += 1;
+
+        for (int i=from; i<to; i++) {
+            Node node = tree.getNode(updatedNodeNrs[i]);
+
+            if (!node.isRoot())
+                relabelGroupOnce(Pitchforks.getLogicalNode(node.getParent()));
+
+            relabelGroupOnce(Pitchforks.getLogicalNode(node));
+
+            for (int j=0; j<node.getChildCount(); j++) {
+                Node child = node.getChild(j);
+                if (Pitchforks.isLogicalNode(child))
+                    relabelGroupOnce(child);
+            }
+        }
+    }
+
+    private void relabelGroupOnce(Node logicalNode) {
+        if (relabelStamps[logicalNode.getNr()] == relabelStamp)
+            return;
+
+        relabelStamps[logicalNode.getNr()] = relabelStamp;
+        relabelGroup(logicalNode);
+    }
+
+    /**
+     * Order the edges above all true non-root nodes from scratch.
+     */
+    private void rebuildEdgeOrder() {
+        nOrderedEdges = 0;
+
+        for (int i=0; i<nTrueNodes; i++) {
+            Node node = tree.getNode(trueNodeNrs[i]);
+            if (node.isRoot())
+                continue;
+
+            orderedEdgeNrs[nOrderedEdges] = node.getNr();
+            orderedEdgeTops[nOrderedEdges] = node.getParent().getHeight();
+            nOrderedEdges += 1;
+        }
+
+        for (int nodeNr=0; nodeNr<edgeTops.length; nodeNr++)
+            edgeTops[nodeNr] = Double.NaN;
+
+        sortEdges(0, nOrderedEdges);
+
+        for (int i=0; i<nOrderedEdges; i++)
+            edgeTops[orderedEdgeNrs[i]] = orderedEdgeTops[i];
+    }
+
+    /**
+     * Merge sort the ordered edges with indices between from and to-1
+     * by the heights of their tops.
+     *
+     * @param from index of first edge to sort
+     * @param to index one past the last edge to sort
+     */
+    private void sortEdges(int from, int to) {
+        if (to - from < 2)
+            return;
+
+        int mid = (from + to) >>> 1;
+        sortEdges(from, mid);
+        sortEdges(mid, to);
+
+        if (orderedEdgeTops[mid-1] <= orderedEdgeTops[mid])
+            return;
+
+        System.arraycopy(orderedEdgeNrs, from, sortScratchNrs, from, to - from);
+        System.arraycopy(orderedEdgeTops, from, sortScratchTops, from, to - from);
+
+        int i = from, j = mid;
+        for (int k=from; k<to; k++) {
+            if (j >= to || (i < mid && sortScratchTops[i] <= sortScratchTops[j])) {
+                orderedEdgeNrs[k] = sortScratchNrs[i];
+                orderedEdgeTops[k] = sortScratchTops[i++];
+            } else {
+                orderedEdgeNrs[k] = sortScratchNrs[j];
+                orderedEdgeTops[k] = sortScratchTops[j++];
+            }
+        }
+    }
+
+    /**
+     * Move the edge above node to its correct place in the ordering,
+     * adding or removing it if its status as a true node has changed.
+     *
+     * @param node node to update
+     */
+    private void updateEdgeOrder(Node node) {
+        int nodeNr = node.getNr();
+        double oldTop = edgeTops[nodeNr];
+        double newTop = !node.isRoot() && trueNodePositions[nodeNr] >= 0
+                ? node.getParent().getHeight()
+                : Double.NaN;
+
+        if (oldTop == newTop || (Double.isNaN(oldTop) && Double.isNaN(newTop)))
+            return;
+
+        if (!Double.isNaN(oldTop)) {
+            int pos = getFirstEdgeIndexAbove(oldTop, false);
+            while (orderedEdgeNrs[pos] != nodeNr)
+                pos += 1;
+
+            nOrderedEdges -= 1;
+            System.arraycopy(orderedEdgeNrs, pos+1, orderedEdgeNrs, pos, nOrderedEdges - pos);
+            System.arraycopy(orderedEdgeTops, pos+1, orderedEdgeTops, pos, nOrderedEdges - pos);
+        }
+
+        if (!Double.isNaN(newTop)) {
+            int pos = getFirstEdgeIndexAbove(newTop, true);
+
+            System.arraycopy(orderedEdgeNrs, pos, orderedEdgeNrs, pos+1, nOrderedEdges - pos);
+            System.arraycopy(orderedEdgeTops, pos, orderedEdgeTops, pos+1, nOrderedEdges - pos);
+            orderedEdgeNrs[pos] = nodeNr;
+            orderedEdgeTops[pos] = newTop;
+            nOrderedEdges += 1;
+        }
+
+        edgeTops[nodeNr] = newTop;
+    }
+
+    /**
+     * Binary search for the first ordered edge whose top lies above (or,
+     * if strict is false, at or above) the given height.
+     *
+     * @param height height to search for
+     * @param strict if true, exclude edges whose tops lie at height
+     * @return index of first such edge, or nOrderedEdges if there is none
+     */
+    private int getFirstEdgeIndexAbove(double height, boolean strict) {
+        int lo = 0, hi = nOrderedEdges;
+
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            double top = orderedEdgeTops[mid];
+
+            if (top > height || (!strict && top == height))
+                hi = mid;
+            else
+                lo = mid + 1;
+        }
+
+        return lo;
+    }
+
+    /**
+     * Determine from scratch which edges may be expanded or collapsed.
+     */
+    private void rebuildPolytomyEdges() {
+        nExpandableEdges = 0;
+        nCollapsableEdges = 0;
+
+        for (int nodeNr=0; nodeNr<expandableEdgePositions.length; nodeNr++) {
+            expandableEdgePositions[nodeNr] = -1;
+            collapsableEdgePositions[nodeNr] = -1;
+        }
+
+        for (int nodeNr=0; nodeNr<expandableEdgePositions.length; nodeNr++)
+            updatePolytomyEdgeStatus(tree.getNode(nodeNr));
+    }
+
+    /**
+     * Update the expandable and collapsable status of every edge whose
+     * status may depend on the given node: those above the node, its
+     * sister, its children and its grandchildren.
+     *
+     * @param node updated node
+     */
+    private void refreshPolytomyEdges(Node node) {
+        if (node.isRoot()) {
+            updatePolytomyEdgeStatus(node);
+        } else {
+            for (int i=0; i<node.getParent().getChildCount(); i++)
+                updatePolytomyEdgeStatus(node.getParent().getChild(i));
+        }
+
+        for (int i=0; i<node.getChildCount(); i++) {
+            Node child = node.getChild(i);
+            updatePolytomyEdgeStatus(child);
+
+            for (int j=0; j<child.getChildCount(); j++)
+                updatePolytomyEdgeStatus(child.getChild(j));
+        }
+    }
+
+    /**
+     * Add the edge above node to or remove it from the sets of
+     * expandable and collapsable edges, according to its current status.
+     *
+     * @param node node to update
+     */
+    private void updatePolytomyEdgeStatus(Node node) {
+        boolean expandable = false, collapsable = false;
+
+        if (!node.isRoot() && (node.getNr() < nLeaves || Pitchforks.isLogicalNode(node))) {
+            Node parent = node.getParent();
+
+            if (Pitchforks.isPolytomy(parent)) {
+                expandable = true;
+            } else {
+                Node sister = parent.getChild(0) == node ? parent.getChild(1) : parent.getChild(0);
+                collapsable = !sister.isLeaf() && sister.getHeight() >= node.getHeight();
+            }
+        }
+
+        nExpandableEdges = updateMembership(expandableEdgeNrs, expandableEdgePositions,
+                nExpandableEdges, node.getNr(), expandable);
+        nCollapsableEdges = updateMembership(collapsableEdgeNrs, collapsableEdgePositions,
+                nCollapsableEdges, node.getNr(), collapsable);
+    }
+
+    /**
+     * Add a node to or remove it from a set of node numbers stored as
+     * described above.  Removal moves the last member into the vacated
+     * position.
+     *
+     * @param nrs node numbers of set members
+     * @param positions position in nrs of each node, or -1
+     * @param size number of set members
+     * @param nodeNr number of node to add or remove
+     * @param member true if node is to be a member of the set
+     * @return new number of set members
+     */
+    private static int updateMembership(int[] nrs, int[] positions, int size,
+                                        int nodeNr, boolean member) {
+        int pos = positions[nodeNr];
+
+        if (member && pos < 0) {
+            nrs[size] = nodeNr;
+            positions[nodeNr] = size;
+            size += 1;
+        } else if (!member && pos >= 0) {
+            size -= 1;
+            int lastNodeNr = nrs[size];
+            nrs[pos] = lastNodeNr;
+            positions[lastNodeNr] = pos;
+            positions[nodeNr] = -1;
+        }
+
+        return size;
+    }
+
+    /**
+     * Ensure the index is valid and that the expandable and collapsable
+     * edges are maintained.
+     */
+    private void validatePolytomyEdges() {
+        validate();
+
+        if (!polytomyEdgesEnabled) {
+            polytomyEdgesEnabled = true;
+            rebuildPolytomyEdges();
+        }
+    }
+
+    /**
+     * Ensure the index is valid and that the edge order is maintained.
+     */
+    private void validateEdgeOrder() {
+        validate();
+
+        if (!edgeOrderEnabled) {
+            edgeOrderEnabled = true;
+            rebuildEdgeOrder();
+        }
+    }
+
+    /**
+     * Update the index following a change to the height, parent or
+     * children of node.  Must be called for every node so modified,
+     * after the modification is complete.  Nodes are refreshed lazily,
+     * so updating every member of a logical node is inexpensive.
+     *
+     * @param node modified node
+     */
+    public void update(Node node) {
+        if (updatedNodeNrs == null)
+            validate();
+
+        addUpdatedNode(node.getNr());
+    }
+
+    /**
+     * Mark the index as requiring a full rebuild.  For use by operators
+     * which modify too much of the tree for update() to be worthwhile.
+     */
+    public void invalidate() {
+        needsRebuild = true;
+    }
+
+    /**
+     * Inform the index that a new proposal is starting, so that it
+     * checks for changes made to the tree since it was last used.
+     */
+    public void beginProposal() {
+        needsCheck = true;
+    }
+
+    /**
+     * Inform the index that the current proposal has been rejected, so
+     * that the changes made to the tree are about to be undone.
+     */
+    public void reject() {
+        needsCheck = true;
+    }
+
+    /**
+     * @return number of true nodes, including leaves and the root
+     */
+    public int getTrueNodeCount() {
+        validate();
+
+        return nTrueNodes;
+    }
+
+    /**
+     * @param i index between 0 and getTrueNodeCount()-1.  The first
+     *          nLeaves true nodes are the leaves.
+     * @return true node with given index
+     */
+    public Node getTrueNode(int i) {
+        validate();
+
+        return tree.getNode(trueNodeNrs[i]);
+    }
+
+    /**
+     * @return number of true internal nodes, including the root
+     */
+    public int getTrueInternalNodeCount() {
+        validate();
+
+        return nTrueNodes - nLeaves;
+    }
+
+    /**
+     * @param i index between 0 and getTrueInternalNodeCount()-1
+     * @return true internal node with given index
+     */
+    public Node getTrueInternalNode(int i) {
+        validate();
+
+        return tree.getNode(trueNodeNrs[nLeaves + i]);
+    }
+
+    /**
+     * @param node node in tree
+     * @return logical node containing node
+     */
+    public Node getLogicalNode(Node node) {
+        validate();
+
+        return tree.getNode(logicalNodeNrs[node.getNr()]);
+    }
+
+    /**
+     * @param logicalNode logical node in tree
+     * @return logical parent of logical node, or null if it is the root
+     */
+    public Node getLogicalParent(Node logicalNode) {
+        if (logicalNode.isRoot())
+            return null;
+
+        return getLogicalNode(logicalNode.getParent());
+    }
+
+    /**
+     * @param logicalNode logical node in tree
+     * @return number of logical children of logical node
+     */
+    public int getLogicalChildCount(Node logicalNode) {
+        validate();
+
+        return logicalChildCounts[logicalNode.getNr()];
+    }
+
+    /**
+     * @param logicalNode logical node in tree
+     * @param i index between 0 and getLogicalChildCount(logicalNode)-1
+     * @return logical child of logical node with given index
+     */
+    public Node getLogicalChild(Node logicalNode, int i) {
+        validate();
+
+        return tree.getNode(logicalChildNrs[logicalNode.getNr()][i]);
+    }
+
+    /**
+     * Count the edges whose tops lie above the given height, without
+     * visiting them.  Takes O(log n) time.
+     *
+     * @param minHeight height threshold
+     * @return number of true non-root nodes whose parents are older
+     *         than minHeight
+     */
+    public int getEdgeCountAbove(double minHeight) {
+        validateEdgeOrder();
+
+        return nOrderedEdges - getFirstEdgeIndexAbove(minHeight, true);
+    }
+
+    /**
+     * @param minHeight height threshold
+     * @param i index between 0 and getEdgeCountAbove(minHeight)-1
+     * @return true non-root node with given index among those whose
+     *         parents are older than minHeight, in order of parent age
+     */
+    public Node getEdgeAbove(double minHeight, int i) {
+        validateEdgeOrder();
+
+        return tree.getNode(orderedEdgeNrs[getFirstEdgeIndexAbove(minHeight, true) + i]);
+    }
+
+    /**
+     * @return number of true non-root nodes whose parents belong to
+     *         polytomies, so that the edges above them may be expanded
+     */
+    public int getExpandableEdgeCount() {
+        validatePolytomyEdges();
+
+        return nExpandableEdges;
+    }
+
+    /**
+     * @param i index between 0 and getExpandableEdgeCount()-1
+     * @return node below expandable edge with given index
+     */
+    public Node getExpandableEdge(int i) {
+        validatePolytomyEdges();
+
+        return tree.getNode(expandableEdgeNrs[i]);
+    }
+
+    /**
+     * @return number of true non-root nodes whose parents do not belong
+     *         to polytomies and whose sisters are internal nodes no
+     *         younger than themselves, so that the edges above them may
+     *         be collapsed
+     */
+    public int getCollapsableEdgeCount() {
+        validatePolytomyEdges();
+
+        return nCollapsableEdges;
+    }
+
+    /**
+     * @param i index between 0 and getCollapsableEdgeCount()-1
+     * @return node below collapsable edge with given index
+     */
+    public Node getCollapsableEdge(int i) {
+        validatePolytomyEdges();
+
+        return tree.getNode(collapsableEdgeNrs[i]);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2019. Tim Vaughan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package pitchfork;
+
+import beast.base.evolution.tree.Node;
+
+/**
+ * Reusable, growable buffer of nodes.  Used by the allocation-free
+ * traversal methods of Pitchforks in place of freshly created lists.
+ */
+public class NodeBuffer {
+
+    private Node[] nodes;
+    private int size;
+
+    public NodeBuffer() {
+        this(16);
+    }
+
+    /**
+     * @param initialCapacity number of nodes which can be held before
+     *                        the buffer must grow
+     */
+    public NodeBuffer(int initialCapacity) {
+        nodes = new Node[Math.max(1, initialCapacity)];
+    }
+
+    /**
+     * Append node to buffer.
+     *
+     * @param node node to add
+     */
+    public void add(Node node) {
+        if (size == nodes.length) {
+            Node[] newNodes = new Node[2*nodes.length];
+            System.arraycopy(nodes, 0, newNodes, 0, size);
+            nodes = newNodes;
+        }
+
+        nodes[size++] = node;
+    }
+
+    /**
+     * @param i index between 0 and size()-1
+     * @return node at given index
+     */
+    public Node get(int i) {
+        if (i >= size)
+            throw new IndexOutOfBoundsException("Index " + i + " out of bounds for buffer of size " + size);
+
+        return nodes[i];
+    }
+
+    /**
+     * @return number of nodes in buffer
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Empty the buffer, retaining its capacity.
+     */
+    public void clear() {
+        for (int i=0; i<size; i++)
+            nodes[i] = null;
+
+        size = 0;
+    }
+}
@@ -58,6 +58,35 @@ public class Pitchforks {
         return trueNodes;
     }
 
+    /**
+     * Collect the true nodes of tree, ordered as for getTrueNodes(), into
+     * a caller-supplied buffer.
+     *
+     * @param tree tree
+     * @param trueNodes buffer to which true nodes are appended
+     */
+    public static void getTrueNodes(Tree tree, NodeBuffer trueNodes) {
+        getTrueInternalNodes(tree, trueNodes);
+
+        for (int nodeNr=0; nodeNr < tree.getLeafNodeCount(); nodeNr++)
+            trueNodes.add(tree.getNode(nodeNr));
+    }
+
+    /**
+     * Collect the true internal nodes of tree into a caller-supplied buffer.
+     *
+     * @param tree tree
+     * @param trueNodes buffer to which true internal nodes are appended
+     */
+    public static void getTrueInternalNodes(Tree tree, NodeBuffer trueNodes) {
+        for (int nodeNr = tree.getLeafNodeCount(); nodeNr < tree.getNodeCount(); nodeNr++) {
+            Node node = tree.getNode(nodeNr);
+
+            if (isLogicalNode(node))
+                trueNodes.add(node);
+        }
+    }
+
     public static boolean isLogicalNode(Node node) {
 		return node.isRoot() || greaterWithPrecision(node.getParent().getHeight(), node.getHeight());
     }
@@ -92,18 +121,122 @@ public class Pitchforks {
     }
 
     public static void getGroupAndLogicalChildren(Node node, List<Node> group, List<Node> logicalChildren) {
-        for (Node child : node.getChildren()) {
-            if (child.getHeight() == node.getHeight()) {
+        double height = node.getHeight();
+
+        for (Node gNode = getNextInGroup(node, node, height);
+             gNode != null;
+             gNode = getNextInGroup(node, gNode, height)) {
+
+            if (gNode.getHeight() == height) {
+                if (group != null)
+                    group.add(gNode);
+            } else {
+                if (logicalChildren != null)
+                    logicalChildren.add(gNode);
+            }
+        }
+    }
+
+    /**
+     * Append the nodes in the same group as node which descend from it,
+     * and the logical children of this group, to caller-supplied buffers.
+     * Nodes are appended in the same order as by the list-based version
+     * of this method.  Either buffer may be null.
+     *
+     * @param node logical node or group member
+     * @param group buffer to which group members are appended
+     * @param logicalChildren buffer to which logical children are appended
+     */
+    public static void getGroupAndLogicalChildren(Node node, NodeBuffer group, NodeBuffer logicalChildren) {
+        double height = node.getHeight();
+
+        for (Node gNode = getNextInGroup(node, node, height);
+             gNode != null;
+             gNode = getNextInGroup(node, gNode, height)) {
+
+            if (gNode.getHeight() == height) {
                 if (group != null)
-                    group.add(child);
-                getGroupAndLogicalChildren(child, group, logicalChildren);
+                    group.add(gNode);
             } else {
                 if (logicalChildren != null)
-                    logicalChildren.add(child);
+                    logicalChildren.add(gNode);
             }
         }
     }
 
+    /**
+     * Find the successor of node in a pre-order traversal of the group
+     * descending from groupRoot together with the logical children of
+     * this group.  The traversal uses the tree's parent links in place
+     * of a stack, so requires no allocation.
+     *
+     * @param groupRoot node from which traversal began
+     * @param node current node in traversal
+     * @param height height of nodes in group
+     * @return next node, or null if the traversal is complete
+     */
+    private static Node getNextInGroup(Node groupRoot, Node node, double height) {
+        if ((node == groupRoot || node.getHeight() == height) && node.getChildCount() > 0)
+            return node.getChild(0);
+
+        while (node != groupRoot) {
+            Node parent = node.getParent();
+
+            int childIdx = 0;
+            while (parent.getChild(childIdx) != node)
+                childIdx += 1;
+
+            if (childIdx + 1 < parent.getChildCount())
+                return parent.getChild(childIdx + 1);
+
+            node = parent;
+        }
+
+        return null;
+    }
+
+    /**
+     * Obtain the logical child of groupRoot following logicalChild.  Used
+     * together with getFirstLogicalChild() to iterate over the logical
+     * children of a node without allocating.
+     *
+     * @param groupRoot logical node or group member
+     * @param logicalChild logical child of groupRoot
+     * @return next logical child, or null if there are no more
+     */
+    public static Node getNextLogicalChild(Node groupRoot, Node logicalChild) {
+        double height = groupRoot.getHeight();
+
+        Node node = getNextInGroup(groupRoot, logicalChild, height);
+        while (node != null && node.getHeight() == height)
+            node = getNextInGroup(groupRoot, node, height);
+
+        return node;
+    }
+
+    /**
+     * @param groupRoot logical node or group member
+     * @return first logical child descending from groupRoot
+     */
+    public static Node getFirstLogicalChild(Node groupRoot) {
+        return getNextLogicalChild(groupRoot, groupRoot);
+    }
+
+    /**
+     * @param groupRoot logical node or group member
+     * @return number of logical children descending from groupRoot
+     */
+    public static int getLogicalChildCount(Node groupRoot) {
+        int count = 0;
+
+        for (Node child = getFirstLogicalChild(groupRoot);
+             child != null;
+             child = getNextLogicalChild(groupRoot, child))
+            count += 1;
+
+        return count;
+    }
+
     /**
      * Get nodes included in same logical node as groupRoot which are descendants
      * of groupRoot.  (Excludes groupRoot itself.)
@@ -158,13 +291,13 @@ public class Pitchforks {
     }
 
 
-	public static boolean greaterWithPrecision(Double d1, Double d2) {
+	public static boolean greaterWithPrecision(double d1, double d2) {
 		if (d1 > d2 + globalPrecisionThreshold)
 			return true;
 		return false;
 	}
 
-	public static boolean equalWithPrecision(Double d1, Double d2) {
+	public static boolean equalWithPrecision(double d1, double d2) {
 		if (Math.abs(d1 - d2) <= globalPrecisionThreshold)
 			return true;
 		return false;
@@ -21,6 +21,9 @@ import beast.base.core.Input;
 import beast.base.evolution.tree.IntervalType;
 import beast.base.evolution.tree.TreeDistribution;
 import beast.base.evolution.tree.coalescent.PopulationFunction;
+import beast.base.inference.CalculationNode;
+import pitchfork.models.pop.BatchedPopulationFunction;
+import pitchfork.models.pop.BatchedPopulationFunctionAdapter;
 
 public class BetaCoalescentDistribution extends TreeDistribution {
 
@@ -42,6 +45,22 @@ public class BetaCoalescentDistribution extends TreeDistribution {
     private CollapsedTreeIntervals collapsedTreeIntervals;
     private BetaCoalescentModel betaCoalescentModel;
     private PopulationFunction populationFunction;
+    private BatchedPopulationFunction batchedPopulationFunction;
+
+    /* Log-probability contribution of each interval, the version of the
+       intervals these correspond to, and the number of incremental updates
+       made to logP since it was last summed from scratch. */
+    private double[] intervalLogP, storedIntervalLogP;
+    private double[] intervalIntegrals, intervalLogPopSizes;
+    private long intervalsVersion, storedIntervalsVersion;
+    private int nIncrementalUpdates, storedNIncrementalUpdates;
+    private boolean hasStoredCopy;
+
+    /* Range of intervals outside of which the current and stored
+       contributions are known to agree. */
+    private int diffFrom, diffTo;
+
+    private boolean needsFullRecalculation, storedNeedsFullRecalculation;
 
     public BetaCoalescentDistribution() {
         treeIntervalsInput.setRule(Input.Validate.FORBIDDEN);
@@ -53,42 +72,193 @@ public class BetaCoalescentDistribution extends TreeDistribution {
         betaCoalescentModel = betaCoalescentModelInput.get();
         collapsedTreeIntervals = collapsedTreeIntervalsInput.get();
         populationFunction = populationFunctionInput.get();
+        batchedPopulationFunction = BatchedPopulationFunctionAdapter.getBatched(populationFunction);
 
         treeInput.setValue(collapsedTreeIntervals.treeInput.get(), this);
-    }
 
-    @Override
-    public double calculateLogP() {
-        logP = 0.0;
+        int nodeCount = collapsedTreeIntervals.treeInput.get().getNodeCount();
+        intervalLogP = new double[nodeCount];
+        storedIntervalLogP = new double[nodeCount];
+        intervalIntegrals = new double[nodeCount];
+        intervalLogPopSizes = new double[nodeCount];
+        hasStoredCopy = true;
+        diffFrom = 0;
+        diffTo = nodeCount;
 
-        double t=0;
-        for (int i = 0; i< collapsedTreeIntervals.getIntervalCount(); i++) {
+        needsFullRecalculation = true;
+    }
 
-            // Get interval details
-            double dt = collapsedTreeIntervals.getInterval(i);
+    /**
+     * Compute the log-probability contributions of a range of intervals,
+     * storing these in intervalLogP.
+     *
+     * @param from index of first interval
+     * @param to index one past the last interval
+     * @return sum of the computed contributions
+     */
+    private double computeIntervalLogP(int from, int to) {
+        batchedPopulationFunction.getIntervalIntegrals(
+                collapsedTreeIntervals.getIntervalEndTimes(), from, to,
+                intervalIntegrals, intervalLogPopSizes);
+
+        double sum = 0.0;
+        for (int i=from; i<to; i++) {
             int n = collapsedTreeIntervals.getLineageCount(i);
 
             // Waiting time contribution
-            logP += -betaCoalescentModel.getTotalCoalRate(n)*populationFunction.getIntegral(t, t+dt);
-
-            // Increment time
-            t += dt;
+            double res = -betaCoalescentModel.getTotalCoalRate(n)*intervalIntegrals[i];
 
             if (collapsedTreeIntervals.getIntervalType(i) == IntervalType.COALESCENT) {
                 // Beta-coalescent event contribution
 
                 int k = collapsedTreeIntervals.getCoalescentEvents(i)+1;
-                double N = populationFunction.getPopSize(t);
 
-                logP += betaCoalescentModel.getLogLambda(n, k) - Math.log(N);
+                res += betaCoalescentModel.getLogLambda(n, k) - intervalLogPopSizes[i];
             }
+
+            intervalLogP[i] = res;
+            sum += res;
+        }
+
+        return sum;
+    }
+
+    /**
+     * Copy the per-interval contributions to the stored state if this has
+     * not already been done since the last call to store().  Only those
+     * which may differ from the stored contributions are copied.
+     */
+    private void prepareForModification() {
+        if (hasStoredCopy)
+            return;
+
+        if (diffFrom < diffTo)
+            System.arraycopy(intervalLogP, diffFrom, storedIntervalLogP, diffFrom, diffTo - diffFrom);
+
+        diffFrom = Integer.MAX_VALUE;
+        diffTo = 0;
+        hasStoredCopy = true;
+    }
+
+    /**
+     * Record that contributions from..to-1 have been modified.
+     *
+     * @param from index of first modified interval
+     * @param to index one past the last modified interval
+     */
+    private void markModified(int from, int to) {
+        diffFrom = Math.min(diffFrom, from);
+        diffTo = Math.max(diffTo, to);
+    }
+
+    @Override
+    public double calculateLogP() {
+        int nIntervals = collapsedTreeIntervals.getIntervalCount();
+        long version = collapsedTreeIntervals.getVersion();
+
+        if (intervalLogP.length < nIntervals) {
+            intervalLogP = new double[nIntervals];
+            storedIntervalLogP = new double[nIntervals];
+            intervalIntegrals = new double[nIntervals];
+            intervalLogPopSizes = new double[nIntervals];
+            diffFrom = 0;
+            diffTo = nIntervals;
+            needsFullRecalculation = true;
         }
 
+        if (!needsFullRecalculation && version == intervalsVersion)
+            return logP;
+
+        prepareForModification();
+
+        if (needsFullRecalculation
+                || collapsedTreeIntervals.getChangeBaseVersion() != intervalsVersion) {
+
+            logP = computeIntervalLogP(0, nIntervals);
+            nIncrementalUpdates = 0;
+            markModified(0, nIntervals);
+
+        } else {
+
+            // Only the intervals in the changed range need to be recomputed.
+            // Later intervals keep their contributions, but these may need
+            // to be shifted to their new positions, in which case the
+            // whole moved tail is modified.
+
+            int from = collapsedTreeIntervals.getFirstChangedInterval();
+            int to = collapsedTreeIntervals.getChangedIntervalsEnd();
+            int shift = collapsedTreeIntervals.getChangedIntervalShift();
+
+            for (int i=from; i<to-shift; i++)
+                logP -= intervalLogP[i];
+
+            if (shift != 0)
+                System.arraycopy(intervalLogP, to-shift,
+                        intervalLogP, to, nIntervals - to);
+
+            logP += computeIntervalLogP(from, to);
+            markModified(from, shift != 0 ? nIntervals : to);
+
+            // Periodically re-sum the contributions to prevent the
+            // accumulation of round-off error.  Doing this once every
+            // nIntervals updates keeps its amortized cost constant.
+            nIncrementalUpdates += 1;
+            if (nIncrementalUpdates >= nIntervals) {
+                logP = sumIntervalLogP(nIntervals);
+                nIncrementalUpdates = 0;
+            }
+        }
+
+        intervalsVersion = version;
+        needsFullRecalculation = false;
+
         return logP;
     }
 
+    private double sumIntervalLogP(int nIntervals) {
+        double sum = 0.0;
+        for (int i=0; i<nIntervals; i++)
+            sum += intervalLogP[i];
+
+        return sum;
+    }
+
+    @Override
+    public void store() {
+        storedIntervalsVersion = intervalsVersion;
+        storedNIncrementalUpdates = nIncrementalUpdates;
+        storedNeedsFullRecalculation = needsFullRecalculation;
+        hasStoredCopy = false;
+
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+        if (hasStoredCopy) {
+            double[] tmp = intervalLogP;
+            intervalLogP = storedIntervalLogP;
+            storedIntervalLogP = tmp;
+        }
+
+        intervalsVersion = storedIntervalsVersion;
+        nIncrementalUpdates = storedNIncrementalUpdates;
+        needsFullRecalculation = storedNeedsFullRecalculation;
+        hasStoredCopy = false;
+
+        super.restore();
+    }
+
     @Override
     protected boolean requiresRecalculation() {
+        // Changes to the tree only affect the intervals reported as changed
+        // by collapsedTreeIntervals.  Changes to the model or population
+        // function can affect every interval.
+        if (betaCoalescentModel.isDirtyCalculation()
+                || !(populationFunction instanceof CalculationNode)
+                || ((CalculationNode) populationFunction).isDirtyCalculation())
+            needsFullRecalculation = true;
+
         return true;
     }
 }
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2019. Tim Vaughan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pitchfork.models;
+
+import beast.base.evolution.tree.coalescent.PopulationFunction;
+
+import java.util.Arrays;
+
+/**
+ * Simulator for the sequence of coalescent events under the Beta
+ * coalescent, without constructing a tree.  Only the time, merger size and
+ * number of lineages present are recorded for each event, in primitive
+ * arrays which are reused between simulations.  This is intended for
+ * summary statistics such as lineage-through-time curves and merger size
+ * spectra, for which the tree topology is not required.
+ *
+ * Instances are not thread-safe.
+ */
+public class BetaCoalescentEventSimulator {
+
+    private final BetaCoalescentModel model;
+    private final PopulationFunction populationFunction;
+    private final double[] sampleTimes;
+
+    private final double[] eventTimes;
+    private final int[] mergerSizes, lineageCounts;
+    private int eventCount;
+
+    /**
+     * Create simulator for events in units of coalescent time, i.e. with a
+     * constant population size of 1.
+     *
+     * @param model Beta coalescent model
+     * @param sampleTimes sampling times (ages) of the lineages
+     */
+    public BetaCoalescentEventSimulator(BetaCoalescentModel model, double[] sampleTimes) {
+        this(model, null, sampleTimes);
+    }
+
+    /**
+     * @param model Beta coalescent model
+     * @param populationFunction population function, or null for a constant
+     *                           population size of 1
+     * @param sampleTimes sampling times (ages) of the lineages
+     */
+    public BetaCoalescentEventSimulator(BetaCoalescentModel model,
+                                        PopulationFunction populationFunction,
+                                        double[] sampleTimes) {
+        if (sampleTimes.length < 1)
+            throw new IllegalArgumentException("Must specify at least one sample time.");
+
+        this.model = model;
+        this.populationFunction = populationFunction;
+
+        this.sampleTimes = sampleTimes.clone();
+        Arrays.sort(this.sampleTimes);
+
+        // Each event reduces the number of lineages by at least one.
+        eventTimes = new double[sampleTimes.length-1];
+        mergerSizes = new int[sampleTimes.length-1];
+        lineageCounts = new int[sampleTimes.length-1];
+    }
+
+    /**
+     * Simulate a new sequence of coalescent events, replacing the results
+     * of any previous simulation.
+     *
+     * @return number of coalescent events
+     */
+    public int simulate() {
+        return simulate(RandomSource.RANDOMIZER);
+    }
+
+    /**
+     * Simulate a new sequence of coalescent events using the given source
+     * of random numbers.
+     *
+     * @param random source of random numbers
+     * @return number of coalescent events
+     */
+    int simulate(RandomSource random) {
+        eventCount = 0;
+
+        int n = 0;
+        int nextSample = 0;
+
+        double tau = 0;
+        while (nextSample < sampleTimes.length || n > 1) {
+
+            double totalPropensity = n>=2 ? model.getTotalCoalRate(n) : 0.0;
+
+            // Increment (coalescent) time
+            tau += random.nextExponential(totalPropensity);
+
+            // Compute real time
+            double t = populationFunction != null
+                    ? populationFunction.getInverseIntensity(tau)
+                    : tau;
+
+            // Check whether next sample time exceeded.
+            if (nextSample < sampleTimes.length && t > sampleTimes[nextSample]) {
+                tau = populationFunction != null
+                        ? populationFunction.getIntensity(sampleTimes[nextSample])
+                        : sampleTimes[nextSample];
+                n += 1;
+                nextSample += 1;
+                continue;
+            }
+
+            int k = model.sampleMergerSize(n, random);
+
+            eventTimes[eventCount] = t;
+            mergerSizes[eventCount] = k;
+            lineageCounts[eventCount] = n;
+            eventCount += 1;
+
+            n -= k - 1;
+        }
+
+        return eventCount;
+    }
+
+    /**
+     * @return number of coalescent events in the most recent simulation
+     */
+    public int getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * @param i event index, between 0 and getEventCount()-1
+     * @return time of event, with events ordered by increasing time
+     */
+    public double getEventTime(int i) {
+        return eventTimes[i];
+    }
+
+    /**
+     * @param i event index, between 0 and getEventCount()-1
+     * @return number of lineages merging in event
+     */
+    public int getMergerSize(int i) {
+        return mergerSizes[i];
+    }
+
+    /**
+     * @param i event index, between 0 and getEventCount()-1
+     * @return number of lineages present immediately before event
+     */
+    public int getLineageCount(int i) {
+        return lineageCounts[i];
+    }
+
+    /**
+     * Direct access to the event times.  The array is overwritten by the
+     * next simulation, and only its first getEventCount() elements are
+     * meaningful.
+     *
+     * @return array of event times
+     */
+    public double[] getEventTimes() {
+        return eventTimes;
+    }
+
+    /**
+     * Direct access to the merger sizes.  The array is overwritten by the
+     * next simulation, and only its first getEventCount() elements are
+     * meaningful.
+     *
+     * @return array of merger sizes
+     */
+    public int[] getMergerSizes() {
+        return mergerSizes;
+    }
+
+    /**
+     * Direct access to the lineage counts.  The array is overwritten by the
+     * next simulation, and only its first getEventCount() elements are
+     * meaningful.
+     *
+     * @return array of lineage counts
+     */
+    public int[] getLineageCounts() {
+        return lineageCounts;
+    }
+}
@@ -22,10 +22,12 @@ import beast.base.evolution.alignment.TaxonSet;
 import beast.base.evolution.tree.Tree;
 import beast.base.inference.CalculationNode;
 import beast.base.inference.parameter.RealParameter;
-import beast.base.util.Binomial;
 import org.apache.commons.math.special.Beta;
 import org.apache.commons.math.special.Gamma;
 
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
 public class BetaCoalescentModel extends CalculationNode {
 
     public Input<RealParameter> alphaInput = new Input<>(
@@ -42,18 +44,175 @@ public class BetaCoalescentModel extends CalculationNode {
             "Tree used to define maximum number of extant lineages.",
             Input.Validate.XOR, taxonSetInput);
 
+    public Input<Integer> maxTableEntriesInput = new Input<>(
+            "maxTableEntries",
+            "Maximum number of entries to hold in memory for each copy of " +
+                    "the rate table. Rows of the table are only computed when " +
+                    "first required, and the least recently used rows are " +
+                    "discarded when this limit is exceeded. (Default 0: no limit.)",
+            0);
+
+    public Input<Integer> alphaCacheSizeInput = new Input<>(
+            "alphaCacheSize",
+            "Number of rate tables for previously visited alpha values to " +
+                    "retain in addition to those for the current and stored " +
+                    "states. (Default 0.)",
+            0);
+
     private int nLeaves;
     private RealParameter alpha;
-    private double logLambdaOffset;
-    private double[][] logLambdaValues;
-    private double[][] cumulativeCoalRates;
-    private boolean[] dirtyFlags;
+    private long maxTableEntries;
+    private double[] logFactorials;
+    private int[] smallScratch, largeScratch;
+
+    /*
+     * Rate tables are keyed by the alpha value they were computed for and
+     * held in access-ordered (LRU) cache.  Storing the model state simply
+     * records which table is current, so store() and restore() are O(1).
+     * When alpha changes to a value not present in the cache, the least
+     * recently used table other than the stored one is recycled: it is
+     * invalidated by incrementing its version rather than by clearing it,
+     * and rows are only recomputed (into the existing arrays) when they
+     * are actually queried.
+     */
+    private LinkedHashMap<Double, RateTable> rateTableCache;
+    private int rateTableCacheCapacity;
+    private RateTable rateTable, storedRateTable;
+
+    /**
+     * Table of rates for a single value of alpha and all lineage counts n
+     * up to nLeaves.  Row n is only allocated once it is first queried, so
+     * that the O(nLeaves^2) memory cost of the full table is only paid if
+     * the full table is actually used.  A row is valid only if its version
+     * matches the version of the table.
+     */
+    private class RateTable {
+        double alphaValue, logLambdaOffset;
+        double[][] logLambdaValues;
+        double[][] cumulativeCoalRates;
+        double[][] aliasProbabilities;
+        int[][] aliasIndices;
+
+        long version;
+        long[] rowVersions, aliasVersions;
+
+        long[] lastAccess;
+        long accessCount, entryCount;
+
+        RateTable() {
+            logLambdaValues = new double[nLeaves-1][];
+            cumulativeCoalRates = new double[nLeaves-1][];
+            aliasProbabilities = new double[nLeaves-1][];
+            aliasIndices = new int[nLeaves-1][];
+            rowVersions = new long[nLeaves-1];
+            aliasVersions = new long[nLeaves-1];
+            lastAccess = new long[nLeaves-1];
+
+            version = 1;
+        }
+
+        boolean isAvailable(int n) {
+            return logLambdaValues[n-2] != null && rowVersions[n-2] == version;
+        }
+
+        boolean isAliasTableAvailable(int n) {
+            return aliasProbabilities[n-2] != null && aliasVersions[n-2] == version;
+        }
+
+        /**
+         * Ensure storage exists for row n, discarding least recently
+         * used rows if doing so would exceed the memory limit.
+         */
+        void allocateRow(int n) {
+            if (logLambdaValues[n-2] != null)
+                return;
+
+            makeRoom(n-1, n);
+
+            logLambdaValues[n-2] = new double[n-1];
+            cumulativeCoalRates[n-2] = new double[n-1];
+            entryCount += n-1;
+        }
+
+        /**
+         * Ensure storage exists for the alias table belonging to row n.
+         * (Alias tables are only used for simulation, so are allocated
+         * separately from the rates themselves.)
+         */
+        void allocateAliasTable(int n) {
+            if (aliasProbabilities[n-2] != null)
+                return;
+
+            makeRoom(n-1, n);
+
+            aliasProbabilities[n-2] = new double[n-1];
+            aliasIndices[n-2] = new int[n-1];
+            entryCount += n-1;
+        }
+
+        /**
+         * Discard least recently used rows other than keepRow until the
+         * given number of additional entries fits within the memory limit.
+         */
+        void makeRoom(int nEntries, int keepRow) {
+            if (maxTableEntries <= 0)
+                return;
+
+            while (entryCount + nEntries > maxTableEntries) {
+                int lruRow = getLeastRecentlyUsedRow(keepRow);
+                if (lruRow < 0)
+                    break;
+
+                discardRow(lruRow);
+            }
+        }
+
+        void discardRow(int n) {
+            if (logLambdaValues[n-2] != null) {
+                logLambdaValues[n-2] = null;
+                cumulativeCoalRates[n-2] = null;
+                entryCount -= n-1;
+            }
+
+            if (aliasProbabilities[n-2] != null) {
+                aliasProbabilities[n-2] = null;
+                aliasIndices[n-2] = null;
+                entryCount -= n-1;
+            }
+        }
+
+        int getLeastRecentlyUsedRow(int excludedRow) {
+            int lruRow = -1;
+            for (int n=2; n<=nLeaves; n++) {
+                if (n != excludedRow && logLambdaValues[n-2] != null
+                        && (lruRow < 0 || lastAccess[n-2] < lastAccess[lruRow-2]))
+                    lruRow = n;
+            }
+
+            return lruRow;
+        }
 
-    private double storedLogLambdaOffset;
-    private double[][] storedLogLambdaValues;
-    private double[][] storedCumulativeCoalRates;
-    private boolean[] storedDirtyFlags;
+        void markAccessed(int n) {
+            lastAccess[n-2] = ++accessCount;
+        }
+
+        void markValid(int n) {
+            rowVersions[n-2] = version;
+        }
 
+        /**
+         * Invalidate every row of the table in constant time and prepare
+         * the table to hold rates for a new value of alpha.
+         *
+         * @param newAlphaValue alpha value for which rates are to be computed
+         */
+        void reset(double newAlphaValue) {
+            version += 1;
+
+            alphaValue = newAlphaValue;
+            logLambdaOffset = -Beta.logBeta(2-alphaValue, alphaValue) + Gamma.logGamma(2-alphaValue);
+        }
+    }
 
     @Override
     public void initAndValidate() {
@@ -63,129 +222,254 @@ public class BetaCoalescentModel extends CalculationNode {
             nLeaves = treeInput.get().getLeafNodeCount();
 
         alpha = alphaInput.get();
+        maxTableEntries = maxTableEntriesInput.get();
 
-        logLambdaValues = new double[nLeaves-1][];
-        storedLogLambdaValues = new double[nLeaves-1][];
-        cumulativeCoalRates = new double[nLeaves-1][];
-        storedCumulativeCoalRates = new double[nLeaves-1][];
-        for (int n=2; n<=nLeaves; n++) {
-            logLambdaValues[n - 2] = new double[n - 1];
-            storedLogLambdaValues[n - 2] = new double[n - 1];
-            cumulativeCoalRates[n - 2] = new double[n - 1];
-            storedCumulativeCoalRates[n - 2] = new double[n - 1];
-        }
+        logFactorials = new double[nLeaves+1];
+        for (int m=2; m<=nLeaves; m++)
+            logFactorials[m] = logFactorials[m-1] + Math.log(m);
 
-        dirtyFlags = new boolean[nLeaves-1];
-        storedDirtyFlags = new boolean[nLeaves-1];
-        for (int n=2; n<=nLeaves; n++) {
-            dirtyFlags[n-2] = true;
-            storedDirtyFlags[n-2] = true;
-        }
-    }
+        smallScratch = new int[nLeaves];
+        largeScratch = new int[nLeaves];
 
-    private void makeDirty(int n) {
-        dirtyFlags[n-2] = true;
-    }
+        rateTableCacheCapacity = 2 + alphaCacheSizeInput.get();
+        rateTableCache = new LinkedHashMap<>(rateTableCacheCapacity, 0.75f, true);
 
-    private void makeClean(int n) {
-        dirtyFlags[n-2] = false;
+        rateTable = null;
+        selectRateTable();
+        storedRateTable = rateTable;
     }
 
-    private void makeAllDirty() {
-        for (int n=2; n<=nLeaves; n++)
-            makeDirty(n);
+    /**
+     * Compute row n of the rate table.  Rather than evaluating the Beta
+     * function and binomial coefficient afresh for each k, this uses the
+     * recurrences
+     *
+     *   B(k+1-alpha, n-k-1+alpha) = B(k-alpha, n-k+alpha)(k-alpha)/(n-k-1+alpha)
+     *   C(n,k+1) = C(n,k)(n-k)/(k+1)
+     *
+     * so that only a single log-gamma evaluation is required per row.
+     *
+     * @param n number of lineages
+     */
+    private void computeCoalRateDistribs(int n) {
+        rateTable.allocateRow(n);
+
+        double[] logLambdaRow = rateTable.logLambdaValues[n-2];
+        double[] cumulativeRow = rateTable.cumulativeCoalRates[n-2];
+
+        double a = rateTable.alphaValue;
+
+        // log(lambda_{n,2}) = log(B(2-alpha, n-2+alpha)/B(2-alpha,alpha))
+        logLambdaRow[0] = rateTable.logLambdaOffset + Gamma.logGamma(n-2+a) - logFactorials[n-1];
+
+        double rate = Math.exp(logLambdaRow[0])*0.5*n*(n-1);
+        cumulativeRow[0] = rate;
+
+        for (int k=2; k<n; k++) {
+            double ratio = (k-a)/(n-k-1+a);
+
+            logLambdaRow[k-1] = logLambdaRow[k-2] + Math.log(ratio);
+
+            rate *= ratio*(n-k)/(k+1);
+            cumulativeRow[k-1] = cumulativeRow[k-2] + rate;
+        }
     }
 
-    private boolean isDirty(int n) {
-        return n>=2 && dirtyFlags[n-2];
+    /**
+     * Build the Walker/Vose alias table for the distribution of merger
+     * sizes k given n lineages.  The unnormalised weights
+     * lambda_{n,k}*C(n,k) are formed in log space and scaled relative to
+     * their maximum before exponentiation, so that construction remains
+     * accurate even where the cumulative rates themselves would overflow.
+     *
+     * @param n number of lineages
+     */
+    private void computeAliasTable(int n) {
+        rateTable.allocateAliasTable(n);
+
+        double[] logLambdaRow = rateTable.logLambdaValues[n-2];
+        double[] probs = rateTable.aliasProbabilities[n-2];
+        int[] aliases = rateTable.aliasIndices[n-2];
+        int m = n-1;
+
+        double maxLogWeight = Double.NEGATIVE_INFINITY;
+        for (int k=2; k<=n; k++) {
+            probs[k-2] = logLambdaRow[k-2] + logFactorials[n] - logFactorials[k] - logFactorials[n-k];
+            maxLogWeight = Math.max(maxLogWeight, probs[k-2]);
+        }
+
+        double totalWeight = 0.0;
+        for (int i=0; i<m; i++) {
+            probs[i] = Math.exp(probs[i] - maxLogWeight);
+            totalWeight += probs[i];
+        }
+
+        int nSmall = 0, nLarge = 0;
+        for (int i=0; i<m; i++) {
+            probs[i] *= m/totalWeight;
+            aliases[i] = i;
+
+            if (probs[i] < 1.0)
+                smallScratch[nSmall++] = i;
+            else
+                largeScratch[nLarge++] = i;
+        }
+
+        while (nSmall > 0 && nLarge > 0) {
+            int small = smallScratch[--nSmall];
+            int large = largeScratch[--nLarge];
+
+            aliases[small] = large;
+            probs[large] = (probs[large] + probs[small]) - 1.0;
+
+            if (probs[large] < 1.0)
+                smallScratch[nSmall++] = large;
+            else
+                largeScratch[nLarge++] = large;
+        }
+
+        // Any remaining entries differ from 1 only due to rounding error.
+        while (nLarge > 0)
+            probs[largeScratch[--nLarge]] = 1.0;
+        while (nSmall > 0)
+            probs[smallScratch[--nSmall]] = 1.0;
     }
 
-    private void computeCoalRateDistribs(int n) {
-        logLambdaOffset = -Beta.logBeta(2-alpha.getValue(), alpha.getValue());
+    /**
+     * Make the table for the current alpha value the current table, taking
+     * it from the cache if possible.
+     */
+    private void selectRateTable() {
+        double alphaValue = alpha.getValue();
 
-        logLambdaValues[n-2][0] = logLambdaOffset + Beta.logBeta(2-alpha.getValue(), n-2+alpha.getValue());
+        rateTable = rateTableCache.get(alphaValue);
+        if (rateTable != null)
+            return;
 
-        cumulativeCoalRates[n-2][0] = Math.exp(logLambdaValues[n-2][0] + Binomial.logChoose(n, 2));
+        if (rateTableCache.size() < rateTableCacheCapacity) {
+            rateTable = new RateTable();
+        } else {
+            Iterator<RateTable> it = rateTableCache.values().iterator();
+            do {
+                rateTable = it.next();
+            } while (rateTable == storedRateTable);
 
-        for (int k=3; k<=n; k++) {
-            logLambdaValues[n-2][k-2] = logLambdaOffset + Beta.logBeta(k-alpha.getValue(), n-k+alpha.getValue());
-            cumulativeCoalRates[n-2][k-2] = cumulativeCoalRates[n-2][k-3]
-                    + Math.exp(logLambdaValues[n-2][k-2] + Binomial.logChoose(n, k));
+            it.remove();
         }
+
+        rateTable.reset(alphaValue);
+        rateTableCache.put(alphaValue, rateTable);
     }
 
     private void update(int n) {
-        if (!isDirty(n))
-            return;
+        if (rateTable.alphaValue != alpha.getValue())
+            selectRateTable();
 
-        computeCoalRateDistribs(n);
+        if (!rateTable.isAvailable(n)) {
+            computeCoalRateDistribs(n);
+            rateTable.markValid(n);
+        }
 
-        makeClean(n);
+        rateTable.markAccessed(n);
     }
 
     public double getLogLambda(int n, int k) {
-        update(n);
-
         if (n<2)
             return 0;
-        else
-            return logLambdaValues[n-2][k-2];
-    }
 
-    public double getTotalCoalRate(int n) {
         update(n);
 
+        return rateTable.logLambdaValues[n-2][k-2];
+    }
+
+    public double getTotalCoalRate(int n) {
         if (n<2)
             return 0;
-        else
-            return cumulativeCoalRates[n-2][n-2];
+
+        update(n);
+
+        return rateTable.cumulativeCoalRates[n-2][n-2];
     }
 
     public double[] getCumulativeCoalRateArray(int n) {
         update(n);
 
-        return cumulativeCoalRates[n-2];
+        return rateTable.cumulativeCoalRates[n-2];
     }
 
-    @Override
-    protected void store() {
+    /**
+     * Draw the number of lineages k involved in the next merger given that
+     * n lineages are present.  Uses an alias table, so each draw is O(1)
+     * once the table for n has been built.
+     *
+     * @param n number of lineages (at least 2)
+     * @return merger size k, between 2 and n inclusive
+     */
+    public int sampleMergerSize(int n) {
+        return sampleMergerSize(n, RandomSource.RANDOMIZER);
+    }
 
-        storedLogLambdaOffset = logLambdaOffset;
+    /**
+     * Draw the number of lineages k involved in the next merger given that
+     * n lineages are present, using the given source of random numbers.
+     *
+     * @param n number of lineages (at least 2)
+     * @param random source of random numbers
+     * @return merger size k, between 2 and n inclusive
+     */
+    int sampleMergerSize(int n, RandomSource random) {
+        update(n);
 
-        for (int n=2; n<=nLeaves; n++) {
-            for (int k=2; k<=n; k++) {
-                storedLogLambdaValues[n-2][k-2] = logLambdaValues[n-2][k-2];
-                storedCumulativeCoalRates[n-2][k-2] = cumulativeCoalRates[n-2][k-2];
-            }
-            storedDirtyFlags[n-2] = dirtyFlags[n-2];
+        if (!rateTable.isAliasTableAvailable(n)) {
+            computeAliasTable(n);
+            rateTable.aliasVersions[n-2] = rateTable.version;
         }
 
-        super.store();
+        int i = random.nextInt(n-1);
+        if (random.nextDouble() < rateTable.aliasProbabilities[n-2][i])
+            return i + 2;
+        else
+            return rateTable.aliasIndices[n-2][i] + 2;
     }
 
-    @Override
-    protected void restore() {
-
-        logLambdaOffset = storedLogLambdaOffset;
+    /**
+     * Create an independent copy of this model for use by a simulation
+     * thread.  The copy has its own rate tables, so that it may be queried
+     * concurrently with this model, and fixes alpha at its current value.
+     *
+     * @return new model with the same alpha and table dimensions
+     */
+    BetaCoalescentModel copyForSimulation() {
+        BetaCoalescentModel copy = new BetaCoalescentModel();
+        copy.initByName(
+                "alpha", new RealParameter(new Double[] {alpha.getValue()}),
+                taxonSetInput.get() != null ? "taxonSet" : "tree",
+                taxonSetInput.get() != null ? taxonSetInput.get() : treeInput.get(),
+                "maxTableEntries", maxTableEntriesInput.get(),
+                "alphaCacheSize", alphaCacheSizeInput.get());
+
+        return copy;
+    }
 
-        double [][] tmp = logLambdaValues;
-        logLambdaValues = storedLogLambdaValues;
-        storedLogLambdaValues = tmp;
+    @Override
+    protected void store() {
+        storedRateTable = rateTable;
 
-        tmp = cumulativeCoalRates;
-        cumulativeCoalRates = storedCumulativeCoalRates;
-        storedCumulativeCoalRates = tmp;
+        super.store();
+    }
 
-        boolean [] tmpFlags = dirtyFlags;
-        dirtyFlags = storedDirtyFlags;
-        storedDirtyFlags = tmpFlags;
+    @Override
+    protected void restore() {
+        rateTable = storedRateTable;
 
         super.restore();
     }
 
     @Override
     protected boolean requiresRecalculation() {
-        makeAllDirty();
-        return true;
+        // Rates depend only on alpha: the tree and taxon set inputs merely
+        // determine the table dimensions.  The table itself is switched
+        // lazily on the next query.
+        return alpha.somethingIsDirty();
     }
 }
@@ -24,11 +24,6 @@ import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.inference.CalculationNode;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Comparator;
-import java.util.List;
-
 /**
  * Computes tree intervals, skipping zero-length intervals.
  */
@@ -40,8 +35,8 @@ public class CollapsedTreeIntervals extends CalculationNode implements IntervalL
 
     protected boolean isDirty;
 
-    protected List<Integer> lineageCounts;
-    protected List<Double> intervalDurations;
+    protected int[] lineageCounts;
+    protected double[] intervalDurations, intervalEndTimes;
     protected int nIntervals, nSamples;
     protected boolean isBinaryTree;
 
@@ -49,17 +44,157 @@ public class CollapsedTreeIntervals extends CalculationNode implements IntervalL
 
     int nLeaves;
 
+    /* Node numbers ordered by increasing height, the position of each
+       node in this ordering, and a copy of the node heights used as the
+       sort keys.  These are retained between updates so that the ordering
+       can be repaired locally when only a few node heights change. */
+    int[] sortedNodeNrs, nodePositions;
+    double[] nodeHeights;
+
+    /* Number of lineages present immediately above each position in the
+       height ordering, and the position at which each interval ends. */
+    int[] lineagesAtPosition, intervalEndPositions;
+
+    int[] changedNodeNrs;
+    boolean needsFullUpdate;
+
+    /* Version number identifying the current interval state, together
+       with a record of the most recent change: moving from the state with
+       version changeBaseVersion to the current one recomputed intervals
+       changeFrom..changeTo-1 and shifted all later intervals by
+       changeShift.  A changeBaseVersion of -1 indicates that the change
+       was not recorded, i.e. that all intervals should be considered
+       changed. */
+    long version, changeBaseVersion, versionCounter;
+    int changeFrom, changeTo, changeShift;
+
+    /* Copy of the state at the time of the last store().  The copy is
+       only taken once the current state is first modified following a
+       store, so proposals which leave the intervals unchanged cost
+       nothing to store or restore. */
+    int[] storedLineageCounts, storedIntervalEndPositions;
+    int[] storedSortedNodeNrs, storedNodePositions, storedLineagesAtPosition;
+    double[] storedIntervalDurations, storedIntervalEndTimes, storedNodeHeights;
+    int storedNIntervals, storedNSamples;
+    boolean storedIsDirty, storedNeedsFullUpdate;
+    long storedVersion;
+    boolean hasStoredCopy;
+
+    /* Ranges of positions in the height ordering and of intervals outside
+       of which the current and stored states are known to agree.  Only
+       these ranges need to be copied when the stored copy is taken.
+       (Arrays indexed by node number are copied for the nodes occupying
+       the range of positions, which is the same set in both states.) */
+    int diffPosFrom, diffPosTo, diffIntervalFrom, diffIntervalTo;
+
     @Override
     public void initAndValidate() {
 
         tree = treeInput.get();
         nLeaves = treeInput.get().getLeafNodeCount();
 
-        lineageCounts = new ArrayList<>();
-        intervalDurations = new ArrayList<>();
+        allocateArrays(tree.getNodeCount());
         isDirty = true;
     }
 
+    private void allocateArrays(int nodeCount) {
+        lineageCounts = new int[nodeCount+1];
+        intervalDurations = new double[nodeCount];
+        intervalEndTimes = new double[nodeCount];
+        intervalEndPositions = new int[nodeCount];
+        sortedNodeNrs = new int[nodeCount];
+        nodePositions = new int[nodeCount];
+        nodeHeights = new double[nodeCount];
+        lineagesAtPosition = new int[nodeCount];
+        changedNodeNrs = new int[nodeCount];
+
+        for (int i=0; i<nodeCount; i++)
+            sortedNodeNrs[i] = i;
+
+        nIntervals = 0;
+        needsFullUpdate = true;
+        changeBaseVersion = -1;
+        version = ++versionCounter;
+
+        storedLineageCounts = new int[nodeCount+1];
+        storedIntervalDurations = new double[nodeCount];
+        storedIntervalEndTimes = new double[nodeCount];
+        storedIntervalEndPositions = new int[nodeCount];
+        storedSortedNodeNrs = new int[nodeCount];
+        storedNodePositions = new int[nodeCount];
+        storedNodeHeights = new double[nodeCount];
+        storedLineagesAtPosition = new int[nodeCount];
+
+        storedNeedsFullUpdate = true;
+        storedIsDirty = true;
+        hasStoredCopy = true;
+
+        markModified(0, nodeCount, 0, nodeCount+1);
+    }
+
+    /**
+     * Copy the current state to the stored state if this has not already
+     * been done since the last call to store().  Must be called before
+     * any modification of the current state.
+     */
+    private void prepareForModification() {
+        if (hasStoredCopy)
+            return;
+
+        if (diffPosFrom < diffPosTo) {
+            int len = diffPosTo - diffPosFrom;
+            System.arraycopy(sortedNodeNrs, diffPosFrom, storedSortedNodeNrs, diffPosFrom, len);
+            System.arraycopy(lineagesAtPosition, diffPosFrom, storedLineagesAtPosition, diffPosFrom, len);
+
+            for (int pos=diffPosFrom; pos<diffPosTo; pos++) {
+                int nodeNr = sortedNodeNrs[pos];
+                storedNodePositions[nodeNr] = nodePositions[nodeNr];
+                storedNodeHeights[nodeNr] = nodeHeights[nodeNr];
+            }
+        }
+
+        // Entries beyond the current interval count are never read, so
+        // need not agree.
+        int to = Math.min(diffIntervalTo, nIntervals+1);
+        if (diffIntervalFrom < to) {
+            int len = to - diffIntervalFrom;
+            System.arraycopy(lineageCounts, diffIntervalFrom, storedLineageCounts, diffIntervalFrom, len);
+
+            len = Math.min(len, nIntervals - diffIntervalFrom);
+            if (len > 0) {
+                System.arraycopy(intervalDurations, diffIntervalFrom, storedIntervalDurations, diffIntervalFrom, len);
+                System.arraycopy(intervalEndTimes, diffIntervalFrom, storedIntervalEndTimes, diffIntervalFrom, len);
+                System.arraycopy(intervalEndPositions, diffIntervalFrom, storedIntervalEndPositions, diffIntervalFrom, len);
+            }
+        }
+
+        storedNIntervals = nIntervals;
+        storedNSamples = nSamples;
+
+        diffPosFrom = Integer.MAX_VALUE;
+        diffPosTo = 0;
+        diffIntervalFrom = Integer.MAX_VALUE;
+        diffIntervalTo = 0;
+
+        hasStoredCopy = true;
+    }
+
+    /**
+     * Record that the current state has been modified within the given
+     * ranges, which must follow a call to prepareForModification().
+     *
+     * @param posFrom first modified position in the height ordering
+     * @param posTo one past the last modified position
+     * @param intervalFrom first modified interval
+     * @param intervalTo one past the last modified interval
+     */
+    private void markModified(int posFrom, int posTo, int intervalFrom, int intervalTo) {
+        diffPosFrom = Math.min(diffPosFrom, posFrom);
+        diffPosTo = Math.max(diffPosTo, posTo);
+        diffIntervalFrom = Math.min(diffIntervalFrom, intervalFrom);
+        diffIntervalTo = Math.max(diffIntervalTo, intervalTo);
+    }
+
     /**
      * @return number of leaf nodes in parent tree.  Necessary because this
      * is also the maximum number of extant lineages possible.
@@ -72,51 +207,289 @@ public class CollapsedTreeIntervals extends CalculationNode implements IntervalL
         if (!isDirty)
             return;
 
-        // Do update
+        int nodeCount = tree.getNodeCount();
+        if (sortedNodeNrs.length != nodeCount)
+            allocateArrays(nodeCount);
+
+        if (!needsFullUpdate) {
+
+            // Identify nodes whose heights have changed since the last update.
+            // Only nodes marked dirty can have changed, as any change to the
+            // tree made before the dirty flags were last cleared has been
+            // seen by an earlier update (see store()).  If these
+            // are few, repair the ordering and intervals locally.
+
+            int nChanged = 0;
+            if (tree.somethingIsDirty()) {
+                for (int nodeNr=0; nodeNr<nodeCount; nodeNr++) {
+                    Node node = tree.getNode(nodeNr);
+                    if (node.isDirty() == Tree.IS_CLEAN
+                            || node.getHeight() == nodeHeights[nodeNr])
+                        continue;
+
+                    if (8*(nChanged+1) > nodeCount) {
+                        needsFullUpdate = true;
+                        break;
+                    }
+
+                    changedNodeNrs[nChanged++] = nodeNr;
+                }
+            }
+
+            if (!needsFullUpdate) {
+                if (nChanged > 0) {
+                    prepareForModification();
+                    repairOrder(nChanged);
+                }
+
+                isDirty = false;
+                return;
+            }
+        }
 
-        lineageCounts.clear();
-        intervalDurations.clear();
+        // Full update
 
-        /* The following looks redundant, but Arrays.asList() returns a list
-        backed by the original array, which causes the sorting to mess up the
-        tree's internal node array! */
-        List<Node> sortedNodeList = new ArrayList<>(Arrays.asList(tree.getNodesAsArray()));
-        sortedNodeList.sort(Comparator.comparingDouble(Node::getHeight));
+        prepareForModification();
+
+        for (int nodeNr=0; nodeNr<nodeCount; nodeNr++)
+            nodeHeights[nodeNr] = tree.getNode(nodeNr).getHeight();
+
+        sortNodeNrsByHeight(sortedNodeNrs, nodeHeights, 0, nodeCount-1);
+
+        for (int i=0; i<nodeCount; i++)
+            nodePositions[sortedNodeNrs[i]] = i;
 
-        int lineages = 0;
-        double prevHeight = 0.0;
         nIntervals = 0;
-        nSamples = 0;
+        nSamples = nLeaves;
         isBinaryTree = true;
 
-        boolean isFirst = true;
+        rebuildIntervals(0, nodeCount-1);
+        changeBaseVersion = -1;
 
-        for (Node node : sortedNodeList) {
+        markModified(0, nodeCount, 0, nodeCount+1);
 
-            if (!isFirst) {
-                double thisDuration = node.getHeight() - prevHeight;
+        needsFullUpdate = false;
+        isDirty = false;
+    }
+
+    /**
+     * Move each changed node to its new place in the height ordering using
+     * insertion moves, then rebuild the intervals spanning the positions
+     * affected by these moves.
+     *
+     * @param nChanged number of node numbers in changedNodeNrs
+     */
+    private void repairOrder(int nChanged) {
+        int nodeCount = sortedNodeNrs.length;
+        int minPos = nodeCount, maxPos = -1;
+
+        for (int c=0; c<nChanged; c++) {
+            int nodeNr = changedNodeNrs[c];
+            double height = tree.getNode(nodeNr).getHeight();
+            nodeHeights[nodeNr] = height;
+
+            int pos = nodePositions[nodeNr];
+            minPos = Math.min(minPos, pos);
+            maxPos = Math.max(maxPos, pos);
+
+            while (pos > 0 && nodeHeights[sortedNodeNrs[pos-1]] > height) {
+                sortedNodeNrs[pos] = sortedNodeNrs[pos-1];
+                nodePositions[sortedNodeNrs[pos]] = pos;
+                pos -= 1;
+            }
+
+            while (pos < nodeCount-1 && nodeHeights[sortedNodeNrs[pos+1]] < height) {
+                sortedNodeNrs[pos] = sortedNodeNrs[pos+1];
+                nodePositions[sortedNodeNrs[pos]] = pos;
+                pos += 1;
+            }
+
+            sortedNodeNrs[pos] = nodeNr;
+            nodePositions[nodeNr] = pos;
+
+            minPos = Math.min(minPos, pos);
+            maxPos = Math.max(maxPos, pos);
+        }
+
+        // The interval ending just above the last affected position
+        // depends on the height at that position, so is also rebuilt.
+        int to = Math.min(maxPos+1, nodeCount-1);
+        rebuildIntervals(minPos, to);
+
+        // Intervals from the start of the change onwards may have been
+        // shifted, so these are included in the modified range.
+        markModified(minPos, to+1, changeFrom,
+                changeShift != 0 ? nIntervals + 1 - Math.min(changeShift, 0) : changeTo);
+    }
+
+    /**
+     * Recompute the intervals ending at positions from..to (inclusive) of
+     * the height ordering.  Intervals ending at later positions are
+     * unaffected by changes within this range apart from being shifted
+     * if the number of intervals in the range changes.
+     *
+     * @param from first position to process
+     * @param to last position to process
+     */
+    private void rebuildIntervals(int from, int to) {
+        double startHeight = from > 1 ? nodeHeights[sortedNodeNrs[from-1]] : 0.0;
+
+        // Count intervals ending in range before and after the change.
+
+        int firstInterval = getFirstIntervalEndingAtOrAfter(from);
+        int oldCount = getFirstIntervalEndingAtOrAfter(to+1) - firstInterval;
+
+        int newCount = 0;
+        double prevHeight = startHeight;
+        for (int pos=Math.max(from, 1); pos<=to; pos++) {
+            double height = nodeHeights[sortedNodeNrs[pos]];
+            if (height - prevHeight > 0.0) {
+                newCount += 1;
+                prevHeight = height;
+            }
+        }
+
+        // Shift later intervals (and the final above-root entry) if needed.
+
+        int delta = newCount - oldCount;
+        if (delta != 0) {
+            int tailStart = firstInterval + oldCount;
+            System.arraycopy(intervalDurations, tailStart,
+                    intervalDurations, tailStart + delta, nIntervals - tailStart);
+            System.arraycopy(intervalEndTimes, tailStart,
+                    intervalEndTimes, tailStart + delta, nIntervals - tailStart);
+            System.arraycopy(intervalEndPositions, tailStart,
+                    intervalEndPositions, tailStart + delta, nIntervals - tailStart);
+            System.arraycopy(lineageCounts, tailStart,
+                    lineageCounts, tailStart + delta, nIntervals + 1 - tailStart);
+            nIntervals += delta;
+        }
+
+        // Recompute intervals in range.
+
+        int lineages = from > 0 ? lineagesAtPosition[from-1] : 0;
+        int interval = firstInterval;
+        prevHeight = startHeight;
+
+        for (int pos=from; pos<=to; pos++) {
+            int nodeNr = sortedNodeNrs[pos];
+            double height = nodeHeights[nodeNr];
+
+            if (pos > 0) {
+                double thisDuration = height - prevHeight;
 
                 if (thisDuration > 0.0) {
-                    lineageCounts.add(lineages);
-                    intervalDurations.add(thisDuration);
-                    prevHeight = node.getHeight();
+                    lineageCounts[interval] = lineages;
+                    intervalDurations[interval] = thisDuration;
+                    intervalEndTimes[interval] = height;
+                    intervalEndPositions[interval] = pos;
+                    interval += 1;
+                    prevHeight = height;
                 }
-            } else
-                isFirst = false;
+            }
 
-            if (node.isLeaf()) {
+            // Leaf nodes are always numbered 0 to nLeaves-1 in BEAST trees.
+            if (nodeNr < nLeaves)
                 lineages += 1;
-                nSamples += 1;
-            } else
+            else
                 lineages -= 1;
+
+            lineagesAtPosition[pos] = lineages;
         }
 
         // Add number of lineages above root (explicitly including this makes other calculations neater)
-        lineageCounts.add(1);
+        lineageCounts[nIntervals] = 1;
+
+        // Record the change.  The type and event count of the interval
+        // preceding the range depend on the lineage count of the first
+        // interval in the range, so this interval is included.
+        changeBaseVersion = version;
+        version = ++versionCounter;
+        changeFrom = Math.max(firstInterval-1, 0);
+        changeTo = firstInterval + newCount;
+        changeShift = delta;
+    }
 
-        nIntervals = intervalDurations.size();
+    /**
+     * @param pos position in height ordering
+     * @return index of first interval ending at or above pos
+     */
+    private int getFirstIntervalEndingAtOrAfter(int pos) {
+        int lo = 0, hi = nIntervals;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (intervalEndPositions[mid] < pos)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
 
-        isDirty = false;
+        return lo;
+    }
+
+    /**
+     * Sort elements from..to (inclusive) of nodeNrs in order of increasing
+     * height, in place and without allocation.  (Quicksort with
+     * median-of-three pivots, falling back to insertion sort for short
+     * ranges.)
+     *
+     * @param nodeNrs array of node numbers to sort
+     * @param heights heights of nodes, indexed by node number
+     * @param from index of first element of range to sort
+     * @param to index of last element of range to sort
+     */
+    static void sortNodeNrsByHeight(int[] nodeNrs, double[] heights, int from, int to) {
+        while (to - from > 16) {
+            int mid = (from + to) >>> 1;
+            if (heights[nodeNrs[mid]] < heights[nodeNrs[from]])
+                swap(nodeNrs, mid, from);
+            if (heights[nodeNrs[to]] < heights[nodeNrs[from]])
+                swap(nodeNrs, to, from);
+            if (heights[nodeNrs[to]] < heights[nodeNrs[mid]])
+                swap(nodeNrs, to, mid);
+            double pivot = heights[nodeNrs[mid]];
+
+            int i = from, j = to;
+            while (i <= j) {
+                while (heights[nodeNrs[i]] < pivot)
+                    i += 1;
+                while (heights[nodeNrs[j]] > pivot)
+                    j -= 1;
+
+                if (i <= j) {
+                    swap(nodeNrs, i, j);
+                    i += 1;
+                    j -= 1;
+                }
+            }
+
+            // Recurse on smaller partition to bound stack depth.
+            if (j - from < to - i) {
+                sortNodeNrsByHeight(nodeNrs, heights, from, j);
+                from = i;
+            } else {
+                sortNodeNrsByHeight(nodeNrs, heights, i, to);
+                to = j;
+            }
+        }
+
+        for (int i=from+1; i<=to; i++) {
+            int nodeNr = nodeNrs[i];
+            double height = heights[nodeNr];
+
+            int j = i-1;
+            while (j >= from && heights[nodeNrs[j]] > height) {
+                nodeNrs[j+1] = nodeNrs[j];
+                j -= 1;
+            }
+            nodeNrs[j+1] = nodeNr;
+        }
+    }
+
+    private static void swap(int[] array, int i, int j) {
+        int tmp = array[i];
+        array[i] = array[j];
+        array[j] = tmp;
     }
 
     @Override
@@ -137,33 +510,112 @@ public class CollapsedTreeIntervals extends CalculationNode implements IntervalL
     public double getInterval(int i) {
         update();
 
-        return intervalDurations.get(i);
+        return intervalDurations[i];
     }
 
     @Override
     public int getLineageCount(int i) {
         update();
 
-        return lineageCounts.get(i);
+        return lineageCounts[i];
     }
 
     @Override
     public int getCoalescentEvents(int i) {
         update();
 
-        return Math.max(0, lineageCounts.get(i) - lineageCounts.get(i+1));
+        return Math.max(0, lineageCounts[i] - lineageCounts[i+1]);
     }
 
     @Override
     public IntervalType getIntervalType(int i) {
         update();
 
-        if (lineageCounts.get(i+1) > lineageCounts.get(i))
+        if (lineageCounts[i+1] > lineageCounts[i])
             return IntervalType.SAMPLE;
         else
             return IntervalType.COALESCENT;
     }
 
+    /**
+     * @param i interval index
+     * @return height at which interval i ends
+     */
+    public double getIntervalEndTime(int i) {
+        update();
+
+        return intervalEndTimes[i];
+    }
+
+    /**
+     * Retrieve the end times of all intervals.  Interval i spans the time
+     * between element i-1 of this array (or 0 for i=0) and element i.
+     *
+     * @return array whose first getIntervalCount() elements are the
+     * interval end times, in increasing order.  The array belongs to this
+     * object and must not be modified.
+     */
+    public double[] getIntervalEndTimes() {
+        update();
+
+        return intervalEndTimes;
+    }
+
+    /**
+     * @return number identifying the current state of the intervals.
+     * Distinct states are never assigned the same number, so consumers
+     * can use this to detect whether the intervals have changed since
+     * they were last examined.
+     */
+    public long getVersion() {
+        update();
+
+        return version;
+    }
+
+    /**
+     * @return version of the state from which the current state was
+     * obtained by the change described by getFirstChangedInterval(),
+     * getChangedIntervalsEnd() and getChangedIntervalShift(), or -1 if
+     * no such change is available and all intervals must be considered
+     * to have changed.
+     */
+    public long getChangeBaseVersion() {
+        update();
+
+        return changeBaseVersion;
+    }
+
+    /**
+     * @return index of first interval changed in the most recent change
+     */
+    public int getFirstChangedInterval() {
+        update();
+
+        return changeFrom;
+    }
+
+    /**
+     * @return index one past the last interval changed in the most recent
+     * change.  Intervals with this or a larger index are unchanged apart
+     * from having been shifted by getChangedIntervalShift().
+     */
+    public int getChangedIntervalsEnd() {
+        update();
+
+        return changeTo;
+    }
+
+    /**
+     * @return amount by which the indices of intervals following the
+     * changed range were shifted by the most recent change
+     */
+    public int getChangedIntervalShift() {
+        update();
+
+        return changeShift;
+    }
+
     @Override
     public double getTotalDuration() {
         return tree.getRoot().getHeight();
@@ -183,9 +635,70 @@ public class CollapsedTreeIntervals extends CalculationNode implements IntervalL
         return nSamples == 0;
     }
 
+    @Override
+    protected void store() {
+
+        // If the intervals are still dirty from an earlier step, the dirty
+        // flags marking the nodes changed during that step have since been
+        // cleared, so only a full update is guaranteed to find them.
+        if (isDirty)
+            needsFullUpdate = true;
+
+        storedIsDirty = isDirty;
+        storedNeedsFullUpdate = needsFullUpdate;
+        storedVersion = version;
+        hasStoredCopy = false;
+
+        super.store();
+    }
+
     @Override
     protected void restore() {
-        isDirty = true;
+        if (hasStoredCopy) {
+            int[] tmpInts;
+            double[] tmpDoubles;
+
+            tmpInts = lineageCounts;
+            lineageCounts = storedLineageCounts;
+            storedLineageCounts = tmpInts;
+
+            tmpDoubles = intervalDurations;
+            intervalDurations = storedIntervalDurations;
+            storedIntervalDurations = tmpDoubles;
+
+            tmpDoubles = intervalEndTimes;
+            intervalEndTimes = storedIntervalEndTimes;
+            storedIntervalEndTimes = tmpDoubles;
+
+            tmpInts = intervalEndPositions;
+            intervalEndPositions = storedIntervalEndPositions;
+            storedIntervalEndPositions = tmpInts;
+
+            tmpInts = sortedNodeNrs;
+            sortedNodeNrs = storedSortedNodeNrs;
+            storedSortedNodeNrs = tmpInts;
+
+            tmpInts = nodePositions;
+            nodePositions = storedNodePositions;
+            storedNodePositions = tmpInts;
+
+            tmpDoubles = nodeHeights;
+            nodeHeights = storedNodeHeights;
+            storedNodeHeights = tmpDoubles;
+
+            tmpInts = lineagesAtPosition;
+            lineagesAtPosition = storedLineagesAtPosition;
+            storedLineagesAtPosition = tmpInts;
+
+            nIntervals = storedNIntervals;
+            nSamples = storedNSamples;
+        }
+
+        isDirty = storedIsDirty;
+        needsFullUpdate = storedNeedsFullUpdate;
+        version = storedVersion;
+        changeBaseVersion = -1;
+        hasStoredCopy = false;
 
         super.restore();
     }
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2019. Tim Vaughan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pitchfork.models;
+
+import beast.base.util.Binomial;
+
+import java.util.stream.IntStream;
+
+/**
+ * Computes the expected site frequency spectrum under the Beta coalescent,
+ * i.e. the expected total length of branches subtending b of the n sampled
+ * lineages, for b between 1 and n-1.  Branch lengths are in units of
+ * coalescent time (constant population size of 1), so that the expected
+ * number of sites at which the derived allele is found in b samples is
+ * obtained by multiplying by the mutation rate.
+ *
+ * The spectrum is computed using the recursion of Birkner, Blath and Eldon
+ * (Genetics, 2013), which conditions on the first merger among the n
+ * lineages to express the distribution of block sizes for n lineages in
+ * terms of the distributions for fewer lineages.  These distributions are
+ * retained between calls, so that spectra for any sample size up to the
+ * largest requested so far are cheap to obtain.  They are discarded when
+ * alpha changes.
+ */
+public class ExpectedSiteFrequencySpectrum {
+
+    private final BetaCoalescentModel model;
+
+    private double alphaValue;
+    private int maxSampleSize;
+
+    /* jumpProbs[n][m] is the probability that the block counting process
+       jumps from n to m blocks.  visitProbs[n][k] is the probability that
+       the process started from n blocks visits k blocks.
+       blockSizeProbs[n][k][b] is the probability that a block chosen
+       uniformly at random when the process started from n blocks visits
+       k blocks has b descendants. */
+    private double[][] jumpProbs, visitProbs;
+    private double[][][] blockSizeProbs;
+    private double[] totalRates;
+
+    /**
+     * @param model Beta coalescent model.  Sample sizes are limited to the
+     *              number of lineages for which the model is defined.
+     */
+    public ExpectedSiteFrequencySpectrum(BetaCoalescentModel model) {
+        this.model = model;
+        reset();
+    }
+
+    /**
+     * Discard all retained results.
+     */
+    private void reset() {
+        alphaValue = model.alphaInput.get().getValue();
+        maxSampleSize = 1;
+
+        jumpProbs = new double[2][];
+        visitProbs = new double[2][];
+        blockSizeProbs = new double[2][][];
+        totalRates = new double[2];
+    }
+
+    /**
+     * Compute the expected site frequency spectrum for n samples.
+     *
+     * @param n number of samples (at least 2)
+     * @return array whose element b (between 1 and n-1) is the expected
+     *         total length of branches subtending b samples.  Element 0 is
+     *         unused.
+     */
+    public double[] getExpectedSFS(int n) {
+        return getExpectedSFS(new int[] {n})[0];
+    }
+
+    /**
+     * Compute the expected site frequency spectra for several sample sizes,
+     * in parallel.
+     *
+     * @param sampleSizes numbers of samples (each at least 2)
+     * @return array whose i'th element is the spectrum for sampleSizes[i],
+     *         in the form returned by getExpectedSFS(int)
+     */
+    public synchronized double[][] getExpectedSFS(int[] sampleSizes) {
+        int maxN = 0;
+        for (int n : sampleSizes) {
+            if (n < 2)
+                throw new IllegalArgumentException("Sample size must be at least 2.");
+
+            maxN = Math.max(maxN, n);
+        }
+
+        update(maxN);
+
+        double[][] spectra = new double[sampleSizes.length][];
+        IntStream.range(0, sampleSizes.length).parallel()
+                .forEach(i -> spectra[i] = computeSpectrum(sampleSizes[i]));
+
+        return spectra;
+    }
+
+    /**
+     * Ensure that the block size distributions are available for all
+     * sample sizes up to and including maxN.
+     *
+     * @param maxN maximum sample size
+     */
+    private void update(int maxN) {
+        if (model.alphaInput.get().getValue() != alphaValue)
+            reset();
+
+        if (maxN <= maxSampleSize)
+            return;
+
+        if (maxN >= jumpProbs.length) {
+            int capacity = Math.max(maxN + 1, 2*jumpProbs.length);
+
+            double[][] newJumpProbs = new double[capacity][];
+            double[][] newVisitProbs = new double[capacity][];
+            double[][][] newBlockSizeProbs = new double[capacity][][];
+            double[] newTotalRates = new double[capacity];
+
+            System.arraycopy(jumpProbs, 0, newJumpProbs, 0, jumpProbs.length);
+            System.arraycopy(visitProbs, 0, newVisitProbs, 0, visitProbs.length);
+            System.arraycopy(blockSizeProbs, 0, newBlockSizeProbs, 0, blockSizeProbs.length);
+            System.arraycopy(totalRates, 0, newTotalRates, 0, totalRates.length);
+
+            jumpProbs = newJumpProbs;
+            visitProbs = newVisitProbs;
+            blockSizeProbs = newBlockSizeProbs;
+            totalRates = newTotalRates;
+        }
+
+        for (int n=maxSampleSize+1; n<=maxN; n++) {
+
+            // The model is not safe for concurrent use, so all rates are
+            // obtained here before the parallel section below.
+
+            totalRates[n] = model.getTotalCoalRate(n);
+
+            jumpProbs[n] = new double[n];
+            for (int k=2; k<=n; k++)
+                jumpProbs[n][n-k+1] = Math.exp(Binomial.logChoose(n, k)
+                        + model.getLogLambda(n, k)) / totalRates[n];
+
+            visitProbs[n] = new double[n+1];
+            visitProbs[n][n] = 1.0;
+            for (int k=2; k<n; k++) {
+                for (int m=k; m<n; m++)
+                    visitProbs[n][k] += jumpProbs[n][m]*visitProbs[m][k];
+            }
+
+            blockSizeProbs[n] = new double[n+1][];
+            blockSizeProbs[n][n] = new double[] {0.0, 1.0};
+
+            int thisN = n;
+            IntStream.range(2, n).parallel()
+                    .forEach(k -> blockSizeProbs[thisN][k] = computeBlockSizeProbs(thisN, k));
+        }
+
+        maxSampleSize = maxN;
+    }
+
+    /**
+     * Compute the block size distribution for k blocks given n samples by
+     * conditioning on the number m of blocks following the first merger.
+     * A block chosen at random when m blocks remain contains the block
+     * produced by that merger with probability proportional to its size,
+     * in which case its number of descendants is increased by n-m.
+     *
+     * @param n number of samples
+     * @param k number of blocks (less than n)
+     * @return array whose element b is the probability of b descendants
+     */
+    private double[] computeBlockSizeProbs(int n, int k) {
+        double[] probs = new double[n-k+2];
+
+        for (int m=k; m<n; m++) {
+            double weight = jumpProbs[n][m]*visitProbs[m][k];
+            if (weight == 0.0)
+                continue;
+
+            double[] prevProbs = blockSizeProbs[m][k];
+            for (int c=1; c<=m-k+1; c++) {
+                double containsMerged = c/(double)m;
+                probs[c] += weight*(1.0 - containsMerged)*prevProbs[c];
+                probs[c+n-m] += weight*containsMerged*prevProbs[c];
+            }
+        }
+
+        for (int b=1; b<probs.length; b++)
+            probs[b] /= visitProbs[n][k];
+
+        return probs;
+    }
+
+    /**
+     * Assemble the expected spectrum for n samples from the expected time
+     * spent with each number of blocks and the block size distributions.
+     *
+     * @param n number of samples
+     * @return expected spectrum
+     */
+    private double[] computeSpectrum(int n) {
+        double[] spectrum = new double[n];
+
+        for (int k=2; k<=n; k++) {
+            double expectedLength = k*visitProbs[n][k]/totalRates[k];
+
+            double[] probs = blockSizeProbs[n][k];
+            for (int b=1; b<=n-k+1; b++)
+                spectrum[b] += expectedLength*probs[b];
+        }
+
+        return spectrum;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2019. Tim Vaughan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pitchfork.models;
+
+/**
+ * Unordered pool of the lineages present during a coalescent simulation,
+ * identified by their node numbers.
+ * Lineages taking part in a merger are drawn by a partial Fisher-Yates
+ * shuffle, with each drawn lineage replaced by the last in the pool, so
+ * that a merger of k lineages costs O(k) regardless of the pool size.
+ */
+class LineagePool {
+
+    private int[] lineages;
+    private int size;
+
+    /**
+     * @param capacity maximum number of lineages present at once
+     */
+    LineagePool(int capacity) {
+        lineages = new int[capacity];
+    }
+
+    /**
+     * Add lineage to pool.
+     *
+     * @param lineage lineage to add
+     */
+    void add(int lineage) {
+        lineages[size++] = lineage;
+    }
+
+    /**
+     * @return number of lineages in pool
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param i index between 0 and size()-1
+     * @return lineage with given index
+     */
+    int get(int i) {
+        return lineages[i];
+    }
+
+    /**
+     * Remove k lineages chosen uniformly at random from the pool.
+     *
+     * @param k number of lineages to remove
+     * @param dest array whose first k elements receive the removed lineages,
+     *             in the order in which they were drawn
+     * @param random source of random numbers
+     */
+    void removeRandom(int k, int[] dest, RandomSource random) {
+        for (int i=0; i<k; i++) {
+            int j = random.nextInt(size);
+            dest[i] = lineages[j];
+
+            size -= 1;
+            lineages[j] = lineages[size];
+        }
+    }
+}
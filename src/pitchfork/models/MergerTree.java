@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2019. Tim Vaughan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pitchfork.models;
+
+import beast.base.evolution.tree.Node;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Compact record of a simulated multifurcating tree, held in primitive
+ * arrays.  Leaves are numbered from 0 to nLeaves-1 and each merger is
+ * assigned the next number in sequence, so that the last merger is the
+ * root.  The tree can be written directly as Newick, with each merger
+ * represented as a single multifurcating node, or converted to a BEAST
+ * Node graph when one is required.
+ */
+class MergerTree {
+
+    private final String[] leafNames;
+    private final int nLeaves;
+
+    private final double[] heights;
+    private final int[] childOffsets, children;
+    private int mergerCount;
+
+    /**
+     * @param leafNames names of the leaves
+     * @param leafAges ages of the leaves, or null if these are to be
+     *                 set using setLeafHeight()
+     */
+    MergerTree(String[] leafNames, double[] leafAges) {
+        this.leafNames = leafNames;
+        nLeaves = leafNames.length;
+
+        // Each merger reduces the number of lineages by at least one, and
+        // each node other than the root is the child of exactly one merger.
+        heights = new double[2*nLeaves-1];
+        childOffsets = new int[nLeaves];
+        children = new int[2*nLeaves-2];
+
+        if (leafAges != null)
+            System.arraycopy(leafAges, 0, heights, 0, nLeaves);
+    }
+
+    /**
+     * @param leaf leaf number
+     * @param height new height of leaf
+     */
+    void setLeafHeight(int leaf, double height) {
+        heights[leaf] = height;
+    }
+
+    /**
+     * Record a merger.
+     *
+     * @param lineages array whose first k elements are the numbers of the
+     *                 merging lineages
+     * @param k number of merging lineages
+     * @param height height of merger
+     * @return number assigned to the merger
+     */
+    int addMerger(int[] lineages, int k, double height) {
+        int offset = childOffsets[mergerCount];
+        System.arraycopy(lineages, 0, children, offset, k);
+
+        int nodeNr = nLeaves + mergerCount;
+        heights[nodeNr] = height;
+
+        mergerCount += 1;
+        childOffsets[mergerCount] = offset + k;
+
+        return nodeNr;
+    }
+
+    /**
+     * @return number of root node
+     */
+    int getRoot() {
+        return nLeaves + mergerCount - 1;
+    }
+
+    /**
+     * Construct the equivalent BEAST tree.  As BEAST trees are binary,
+     * each merger of k lineages is represented by a ladder of k-1 nodes
+     * joined by zero-length edges.
+     *
+     * @return root node
+     */
+    Node toNode() {
+        Node[] nodes = new Node[nLeaves + mergerCount];
+
+        for (int i=0; i<nLeaves; i++) {
+            Node leaf = new Node(leafNames[i]);
+            leaf.setNr(i);
+            leaf.setHeight(heights[i]);
+            nodes[i] = leaf;
+        }
+
+        int nextInternalNr = nLeaves;
+
+        for (int merger=0; merger<mergerCount; merger++) {
+            int offset = childOffsets[merger];
+            double height = heights[nLeaves + merger];
+
+            Node newParent = new Node(String.valueOf(nextInternalNr));
+            newParent.setNr(nextInternalNr++);
+            newParent.setHeight(height);
+
+            newParent.addChild(nodes[children[offset]]);
+            newParent.addChild(nodes[children[offset+1]]);
+
+            for (int i=offset+2; i<childOffsets[merger+1]; i++) {
+                Node newNewParent = new Node(String.valueOf(nextInternalNr));
+                newNewParent.setNr(nextInternalNr++);
+                newNewParent.setHeight(height);
+
+                newNewParent.addChild(newParent);
+                newNewParent.addChild(nodes[children[i]]);
+
+                newParent = newNewParent;
+            }
+
+            nodes[nLeaves + merger] = newParent;
+        }
+
+        return nodes[getRoot()];
+    }
+
+    /**
+     * Write the tree in Newick format, terminated by a semicolon.  Each
+     * merger is written as a single multifurcating node.  The tree is
+     * traversed iteratively and written piece by piece, so neither the
+     * depth of the tree nor its size is limited by the call stack or by
+     * the need to build its representation as a single string.
+     *
+     * @param out destination, which should be buffered
+     * @throws IOException if the destination cannot be written to
+     */
+    void writeNewick(Writer out) throws IOException {
+        int root = getRoot();
+
+        // Stack of partially written mergers, along with the position in
+        // the children array of the next child to write.
+        int[] stack = new int[mergerCount];
+        int[] nextChild = new int[mergerCount];
+        int stackSize = 0;
+
+        int nodeNr = root;
+        while (true) {
+
+            // Descend to the first leaf below the current node.
+            while (nodeNr >= nLeaves) {
+                out.write('(');
+                stack[stackSize] = nodeNr;
+                nextChild[stackSize] = childOffsets[nodeNr - nLeaves];
+                nodeNr = children[nextChild[stackSize]++];
+                stackSize += 1;
+            }
+
+            out.write(leafNames[nodeNr]);
+
+            // Close completed mergers, then move on to the next child.
+            while (true) {
+                if (stackSize == 0) {
+                    out.write(';');
+                    return;
+                }
+
+                int parentNr = stack[stackSize-1];
+                writeBranchLength(out, heights[parentNr] - heights[nodeNr]);
+
+                if (nextChild[stackSize-1] < childOffsets[parentNr - nLeaves + 1]) {
+                    out.write(',');
+                    nodeNr = children[nextChild[stackSize-1]++];
+                    break;
+                }
+
+                out.write(')');
+                nodeNr = parentNr;
+                stackSize -= 1;
+            }
+        }
+    }
+
+    private static void writeBranchLength(Writer out, double length) throws IOException {
+        out.write(':');
+        out.write(Double.toString(length));
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2019. Tim Vaughan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pitchfork.models;
+
+import beast.base.util.Randomizer;
+
+import java.util.SplittableRandom;
+
+/**
+ * Source of random numbers for tree simulation.  Single simulations draw
+ * from BEAST's global Randomizer, while replicates simulated in parallel
+ * each draw from their own stream.
+ */
+interface RandomSource {
+
+    /**
+     * @param n upper bound
+     * @return integer drawn uniformly from 0 to n-1
+     */
+    int nextInt(int n);
+
+    /**
+     * @return double drawn uniformly from [0,1)
+     */
+    double nextDouble();
+
+    /**
+     * @param rate rate of exponential distribution
+     * @return exponentially distributed random variate
+     */
+    default double nextExponential(double rate) {
+        return -Math.log(1 - nextDouble())/rate;
+    }
+
+    /**
+     * Random source drawing from the global Randomizer.
+     */
+    RandomSource RANDOMIZER = new RandomSource() {
+        @Override
+        public int nextInt(int n) {
+            return Randomizer.nextInt(n);
+        }
+
+        @Override
+        public double nextDouble() {
+            return Randomizer.nextDouble();
+        }
+
+        @Override
+        public double nextExponential(double rate) {
+            return Randomizer.nextExponential(rate);
+        }
+    };
+
+    /**
+     * @param random splittable generator
+     * @return random source drawing from given generator
+     */
+    static RandomSource of(SplittableRandom random) {
+        return new RandomSource() {
+            @Override
+            public int nextInt(int n) {
+                return random.nextInt(n);
+            }
+
+            @Override
+            public double nextDouble() {
+                return random.nextDouble();
+            }
+        };
+    }
+}
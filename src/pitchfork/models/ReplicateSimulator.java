@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2019. Tim Vaughan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pitchfork.models;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs independent replicates of a tree simulation on a pool of worker
+ * threads, writing the Newick representation of each tree to an output
+ * file in replicate order.
+ *
+ * Each replicate draws from its own random number stream, split from a
+ * single seeded generator in replicate order, so the output depends only
+ * on the seed and not on the number of threads or their scheduling.  At
+ * most a fixed number of replicates per thread are held in memory while
+ * waiting to be written.
+ */
+class ReplicateSimulator {
+
+    private static final int REPLICATES_PER_THREAD = 4;
+
+    /**
+     * Simulation of a single replicate.
+     */
+    interface Replicate {
+
+        /**
+         * Simulate a single tree.  Calls for different replicates may be
+         * made concurrently, but never concurrently for the same worker.
+         *
+         * @param replicate index of replicate
+         * @param worker index of worker thread, between 0 and threadCount-1
+         * @param random source of random numbers for this replicate
+         * @return simulated tree
+         */
+        MergerTree simulate(int replicate, int worker, RandomSource random);
+    }
+
+    /**
+     * @param threadCount requested number of threads, or 0 to use one per
+     *                    available processor
+     * @return number of worker threads to use
+     */
+    static int getThreadCount(int threadCount) {
+        if (threadCount < 0)
+            throw new IllegalArgumentException("Thread count must be non-negative.");
+
+        return threadCount > 0
+                ? threadCount
+                : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Simulate replicates and write them to the given writer, one Newick
+     * string per line.  Trees are written by the calling thread as they
+     * complete, in replicate order.
+     *
+     * @param replicate simulation to run
+     * @param replicateCount number of replicates
+     * @param threadCount number of worker threads (as returned by getThreadCount())
+     * @param seed seed from which the replicate streams are derived
+     * @param out writer to which the trees are written
+     * @return tree simulated for the first replicate
+     * @throws IOException if the trees cannot be written
+     */
+    static MergerTree run(Replicate replicate, int replicateCount, int threadCount,
+                          long seed, BufferedWriter out) throws IOException {
+
+        SplittableRandom seedGenerator = new SplittableRandom(seed);
+
+        AtomicInteger nextWorker = new AtomicInteger();
+        ThreadLocal<Integer> worker = ThreadLocal.withInitial(nextWorker::getAndIncrement);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount, r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Deque<Future<MergerTree>> pending = new ArrayDeque<>();
+        int maxPending = REPLICATES_PER_THREAD*threadCount;
+        int nextReplicate = 0;
+
+        MergerTree firstTree = null;
+
+        try {
+            for (int i=0; i<replicateCount; i++) {
+
+                while (nextReplicate < replicateCount && pending.size() < maxPending) {
+                    int thisReplicate = nextReplicate++;
+                    RandomSource random = RandomSource.of(seedGenerator.split());
+
+                    pending.add(executor.submit(
+                            () -> replicate.simulate(thisReplicate, worker.get(), random)));
+                }
+
+                MergerTree tree = pending.remove().get();
+                if (i == 0)
+                    firstTree = tree;
+
+                tree.writeNewick(out);
+                out.newLine();
+            }
+
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while simulating replicates.", ex);
+
+        } catch (ExecutionException ex) {
+            throw new RuntimeException("Error simulating replicate.", ex.getCause());
+
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return firstTree;
+    }
+}
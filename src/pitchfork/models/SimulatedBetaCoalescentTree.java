@@ -19,17 +19,16 @@ package pitchfork.models;
 
 import beast.base.core.Input;
 import beast.base.core.Log;
-import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.coalescent.PopulationFunction;
 import beast.base.util.Randomizer;
 
-import java.io.FileNotFoundException;
-import java.io.PrintStream;
-import java.util.ArrayList;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.List;
 
 /**
  * Simulator for Lambda coalescent trees.
@@ -50,9 +49,29 @@ public class SimulatedBetaCoalescentTree extends Tree {
             "fileName",
             "Name of file to save Newick representation of tree to.");
 
+    public Input<Integer> replicateCountInput = new Input<>(
+            "replicateCount",
+            "Number of independent trees to simulate. When greater than 1, " +
+                    "all trees are written to fileName, one per line, and " +
+                    "the first is assigned to this tree. (Default 1.)",
+            1);
+
+    public Input<Integer> threadCountInput = new Input<>(
+            "threadCount",
+            "Number of threads used to simulate replicates. (Default 0: " +
+                    "one per available processor.)",
+            0);
+
+    public Input<Long> seedInput = new Input<>(
+            "seed",
+            "Seed used to derive the random number streams of the " +
+                    "replicates. If absent, one is drawn from the BEAST " +
+                    "random number generator.");
+
     private double[] leafAges;
     private String[] leafNames;
     private int nLeaves;
+    private int[] leafOrder;
 
     private PopulationFunction populationFunction;
     private BetaCoalescentModel lcModel;
@@ -78,17 +97,40 @@ public class SimulatedBetaCoalescentTree extends Tree {
             leafNames[nodeNr] = taxonName;
         }
 
+        // Leaf numbers in order of increasing age
+        Integer[] sortedLeaves = new Integer[nLeaves];
+        for (int i=0; i<nLeaves; i++)
+            sortedLeaves[i] = i;
+        Arrays.sort(sortedLeaves, Comparator.comparingDouble(i -> leafAges[i]));
+
+        leafOrder = new int[nLeaves];
+        for (int i=0; i<nLeaves; i++)
+            leafOrder[i] = sortedLeaves[i];
+
         populationFunction = populationFunctionInput.get();
         lcModel = lcModelInput.get();
 
+        int replicateCount = replicateCountInput.get();
+        if (replicateCount > 1 && fileNameInput.get() == null)
+            throw new IllegalArgumentException("Must specify fileName when " +
+                    "simulating more than one replicate.");
+
         initArrays();
-        simulate();
+
+        if (replicateCount > 1) {
+            simulateReplicates(replicateCount);
+            return;
+        }
+
+        MergerTree tree = simulate(lcModel, RandomSource.RANDOMIZER);
+        assignFromWithoutID(new Tree(tree.toNode()));
 
         // Write output file
         if (fileNameInput.get() != null) {
-            try (PrintStream ps = new PrintStream(fileNameInput.get())) {
-                ps.println(getRoot().toNewick().concat(";"));
-            } catch (FileNotFoundException ex) {
+            try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(fileNameInput.get()))) {
+                tree.writeNewick(writer);
+                writer.newLine();
+            } catch (IOException ex) {
                 Log.err.println("Could not write to output file.");
                 System.exit(1);
             }
@@ -96,88 +138,81 @@ public class SimulatedBetaCoalescentTree extends Tree {
     }
 
     /**
-     * Perform simulation.
+     * Simulate independent replicates in parallel, writing each to the
+     * output file and assigning the first to this tree.
+     *
+     * @param replicateCount number of replicates
      */
-    private void simulate() {
-
-        List<Node> activeLineages = new ArrayList<>();
-        List<Node> unusedLineages = new ArrayList<>();
-        List<Node> coalescingLineages = new ArrayList<>();
-
-        // Create leaf nodes:
-        for (int i=0; i<nLeaves; i++)  {
-            Node leaf = new Node(leafNames[i]);
-            leaf.setNr(i);
-            leaf.setHeight(leafAges[i]);
-            unusedLineages.add(leaf);
+    private void simulateReplicates(int replicateCount) {
+        int threadCount = Math.min(replicateCount,
+                ReplicateSimulator.getThreadCount(threadCountInput.get()));
+        long seed = seedInput.get() != null ? seedInput.get() : Randomizer.nextLong();
+
+        // Each worker needs its own rate tables, and the population function
+        // must be prepared before it is shared between threads.
+        BetaCoalescentModel[] models = new BetaCoalescentModel[threadCount];
+        for (int i=0; i<threadCount; i++)
+            models[i] = lcModel.copyForSimulation();
+
+        populationFunction.prepare();
+
+        try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(fileNameInput.get()))) {
+            MergerTree tree = ReplicateSimulator.run(
+                    (replicate, worker, random) -> simulate(models[worker], random),
+                    replicateCount, threadCount, seed, writer);
+
+            assignFromWithoutID(new Tree(tree.toNode()));
+        } catch (IOException ex) {
+            Log.err.println("Could not write to output file.");
+            System.exit(1);
         }
+    }
+
+    /**
+     * Perform simulation.
+     *
+     * @param model Beta coalescent model used to draw merger sizes
+     * @param random source of random numbers
+     * @return simulated tree
+     */
+    private MergerTree simulate(BetaCoalescentModel model, RandomSource random) {
 
-        int nextInternalNr = nLeaves;
+        MergerTree tree = new MergerTree(leafNames, leafAges);
 
-        unusedLineages.sort(Comparator.comparingDouble(Node::getHeight));
+        LineagePool activeLineages = new LineagePool(nLeaves);
+        int[] coalescingLineages = new int[nLeaves];
+
+        int nextUnusedLineage = 0;
 
         double tau = 0;
-        while (!unusedLineages.isEmpty() || activeLineages.size() > 1) {
+        while (nextUnusedLineage < nLeaves || activeLineages.size() > 1) {
 
             // Compute propensities
 
             int n = activeLineages.size();
-            double totalPropensity = n>=2 ? lcModel.getTotalCoalRate(n) : 0.0 ;
+            double totalPropensity = n>=2 ? model.getTotalCoalRate(n) : 0.0 ;
 
             // Increment (coalescent) time
-            tau += Randomizer.nextExponential(totalPropensity);
+            tau += random.nextExponential(totalPropensity);
 
             // Compute real time
             double t = populationFunction.getInverseIntensity(tau);
 
             // Check whether next sample time exceeded.
-            if (!unusedLineages.isEmpty() && t>unusedLineages.get(0).getHeight()) {
-                tau = populationFunction.getIntensity(unusedLineages.get(0).getHeight());
-                activeLineages.add(unusedLineages.remove(0));
+            if (nextUnusedLineage < nLeaves && t>leafAges[leafOrder[nextUnusedLineage]]) {
+                tau = populationFunction.getIntensity(leafAges[leafOrder[nextUnusedLineage]]);
+                activeLineages.add(leafOrder[nextUnusedLineage++]);
                 continue;
             }
 
             // Choose reaction
-            double u = Randomizer.nextDouble()*totalPropensity;
-            int k = 2 + -(Arrays.binarySearch(lcModel.getCumulativeCoalRateArray(n), u) + 1);
-
-            if (k>n || k<2)
-                throw new IllegalStateException("Numerical error in furcation degree sampler.");
-
+            int k = model.sampleMergerSize(n, random);
 
             // Implement coalescence
-            // (Note: BEAST really only deals with binary trees, so have to
-            // fake multifurcations using zero-length edges.)
-
-            Node newParent = new Node(String.valueOf(nextInternalNr));
-            newParent.setNr(nextInternalNr++);
-            newParent.setHeight(t);
-
-            int[] indices = Randomizer.shuffled(n);
-
-            coalescingLineages.clear();
-            for (int i=0; i<k; i++)
-                coalescingLineages.add(activeLineages.get(indices[i]));
-
-            newParent.addChild(coalescingLineages.get(0));
-            newParent.addChild(coalescingLineages.get(1));
-
-            for (int i=2; i<k; i++) {
-                Node newNewParent = new Node(String.valueOf(nextInternalNr));
-                newNewParent.setNr(nextInternalNr++);
-                newNewParent.setHeight(t);
-
-                newNewParent.addChild(newParent);
-                newNewParent.addChild(coalescingLineages.get(i));
-
-                newParent = newNewParent;
-            }
-
-            activeLineages.removeAll(coalescingLineages);
-
-            activeLineages.add(newParent);
+            activeLineages.removeRandom(k, coalescingLineages, random);
+            activeLineages.add(tree.addMerger(coalescingLineages, k, t));
         }
 
-        assignFromWithoutID(new Tree(activeLineages.get(0)));
+        return tree;
     }
 }
@@ -19,15 +19,16 @@ package pitchfork.models;
 
 import beast.base.core.Input;
 import beast.base.core.Log;
-import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.inference.distribution.ParametricDistribution;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.util.Randomizer;
 import org.apache.commons.math.MathException;
 
-import java.io.FileNotFoundException;
-import java.io.PrintStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
@@ -57,9 +58,30 @@ public class SimulatedBetaSkylineTree extends Tree {
             "fileName",
             "Name of file to save Newick representation of tree to.");
 
+    public Input<Integer> replicateCountInput = new Input<>(
+            "replicateCount",
+            "Number of independent trees to simulate. When greater than 1, " +
+                    "all trees are written to fileName, one per line, and " +
+                    "the first is assigned to this tree along with its " +
+                    "skyline population sizes. (Default 1.)",
+            1);
+
+    public Input<Integer> threadCountInput = new Input<>(
+            "threadCount",
+            "Number of threads used to simulate replicates. (Default 0: " +
+                    "one per available processor.)",
+            0);
+
+    public Input<Long> seedInput = new Input<>(
+            "seed",
+            "Seed used to derive the random number streams of the " +
+                    "replicates. If absent, one is drawn from the BEAST " +
+                    "random number generator.");
+
     private double[] leafAges;
     private String[] leafNames;
     private int nLeaves;
+    private int[] leafOrder;
 
     private ParametricDistribution skylinePopDistr;
     private BetaCoalescentModel betaCoalescentModel;
@@ -89,23 +111,85 @@ public class SimulatedBetaSkylineTree extends Tree {
             leafNames[nodeNr] = taxonName;
         }
 
+        // Leaf numbers in order of increasing age
+        Integer[] sortedLeaves = new Integer[nLeaves];
+        for (int i=0; i<nLeaves; i++)
+            sortedLeaves[i] = i;
+        Arrays.sort(sortedLeaves, Comparator.comparingDouble(i -> leafAges[i]));
+
+        leafOrder = new int[nLeaves];
+        for (int i=0; i<nLeaves; i++)
+            leafOrder[i] = sortedLeaves[i];
+
         betaCoalescentModel = lcModelInput.get();
 
-        List<Event> treeEvents = simulateTreeEvents();
+        int replicateCount = replicateCountInput.get();
+        if (replicateCount > 1 && fileNameInput.get() == null)
+            throw new IllegalArgumentException("Must specify fileName when " +
+                    "simulating more than one replicate.");
 
         initArrays();
 
-        simulateTree(treeEvents);
-
-        // Write output file
-        if (fileNameInput.get() != null) {
-            try (PrintStream ps = new PrintStream(fileNameInput.get())) {
-                ps.println(getRoot().toNewick().concat(";"));
-            } catch (FileNotFoundException ex) {
-                Log.err.println("Could not write to output file.");
-                System.exit(1);
+        double[] popSizes = new double[skylinePopulations.getDimension()];
+        for (int i=0; i<popSizes.length; i++)
+            popSizes[i] = skylinePopulations.getArrayValue(i);
+
+        if (replicateCount > 1) {
+            simulateReplicates(replicateCount, popSizes);
+        } else {
+            List<Event> treeEvents = simulateTreeEvents(betaCoalescentModel, RandomSource.RANDOMIZER);
+            MergerTree tree = simulateTree(treeEvents, popSizes, RandomSource.RANDOMIZER);
+            assignFromWithoutID(new Tree(tree.toNode()));
+
+            // Write output file
+            if (fileNameInput.get() != null) {
+                try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(fileNameInput.get()))) {
+                    tree.writeNewick(writer);
+                    writer.newLine();
+                } catch (IOException ex) {
+                    Log.err.println("Could not write to output file.");
+                    System.exit(1);
+                }
             }
         }
+
+        for (int i=0; i<popSizes.length; i++)
+            skylinePopulations.setValue(i, popSizes[i]);
+    }
+
+    /**
+     * Simulate independent replicates in parallel, writing each to the
+     * output file and assigning the first to this tree.
+     *
+     * @param replicateCount number of replicates
+     * @param popSizes initial skyline population sizes, replaced by those
+     *                 drawn for the first replicate
+     */
+    private void simulateReplicates(int replicateCount, double[] popSizes) {
+        int threadCount = Math.min(replicateCount,
+                ReplicateSimulator.getThreadCount(threadCountInput.get()));
+        long seed = seedInput.get() != null ? seedInput.get() : Randomizer.nextLong();
+
+        // Each worker needs its own rate tables.
+        BetaCoalescentModel[] models = new BetaCoalescentModel[threadCount];
+        for (int i=0; i<threadCount; i++)
+            models[i] = betaCoalescentModel.copyForSimulation();
+
+        double[] initialPopSizes = popSizes.clone();
+
+        try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(fileNameInput.get()))) {
+            MergerTree tree = ReplicateSimulator.run((replicate, worker, random) -> {
+                        List<Event> treeEvents = simulateTreeEvents(models[worker], random);
+                        return simulateTree(treeEvents,
+                                replicate == 0 ? popSizes : initialPopSizes.clone(),
+                                random);
+                    }, replicateCount, threadCount, seed, writer);
+
+            assignFromWithoutID(new Tree(tree.toNode()));
+        } catch (IOException ex) {
+            Log.err.println("Could not write to output file.");
+            System.exit(1);
+        }
     }
 
     private abstract class Event {
@@ -121,16 +205,16 @@ public class SimulatedBetaSkylineTree extends Tree {
     }
 
     private class SampEvent extends Event {
-        List<Node> leafNodes;
+        List<Integer> leafNrs;
 
-        SampEvent(double time, int lineageCount, List<Node> leafNodes) {
+        SampEvent(double time, int lineageCount, List<Integer> leafNrs) {
             super(time, lineageCount);
-            this.leafNodes = leafNodes;
+            this.leafNrs = leafNrs;
         }
 
         @Override
         int getMultiplicity() {
-            return leafNodes.size();
+            return leafNrs.size();
         }
     }
 
@@ -151,168 +235,147 @@ public class SimulatedBetaSkylineTree extends Tree {
 
     /**
      * Simulate event sequence
+     *
+     * @param model Beta coalescent model used to draw merger sizes
+     * @param random source of random numbers
+     * @return list of sampling and coalescence events
      */
-    private List<Event> simulateTreeEvents() {
-        List<Node> sampleNodes = new ArrayList<>();
-
-        // Create leaf nodes:
-        for (int i=0; i<nLeaves; i++)  {
-            Node leaf = new Node(leafNames[i]);
-            leaf.setNr(i);
-            leaf.setHeight(leafAges[i]);
-            sampleNodes.add(leaf);
-        }
-
-        sampleNodes.sort(Comparator.comparingDouble(Node::getHeight));
-
+    private List<Event> simulateTreeEvents(BetaCoalescentModel model, RandomSource random) {
         List<SampEvent> sampleEvents = new ArrayList<>();
 
         SampEvent currentEvent = null;
-        for (Node sampleNode : sampleNodes) {
-            if (currentEvent == null || sampleNode.getHeight()>currentEvent.time) {
-                currentEvent = new SampEvent(sampleNode.getHeight(), -1, new ArrayList<>());
-                currentEvent.leafNodes.add(sampleNode);
+        for (int leafNr : leafOrder) {
+            if (currentEvent == null || leafAges[leafNr]>currentEvent.time) {
+                currentEvent = new SampEvent(leafAges[leafNr], -1, new ArrayList<>());
+                currentEvent.leafNrs.add(leafNr);
                 sampleEvents.add(currentEvent);
             } else {
-                currentEvent.leafNodes.add(sampleNode);
+                currentEvent.leafNrs.add(leafNr);
             }
         }
 
-        List<Event> treeEvents = new ArrayList<>();
+        // Simulate coalescent events, then interleave them with the
+        // sampling events.
 
-        int n = 0;
+        BetaCoalescentEventSimulator eventSimulator =
+                new BetaCoalescentEventSimulator(model, leafAges);
+        int coalEventCount = eventSimulator.simulate(random);
 
-        double t = 0;
-        while (!sampleEvents.isEmpty() || n > 1) {
-
-            // Compute propensities
+        List<Event> treeEvents = new ArrayList<>();
 
-            double totalPropensity = n>=2 ? betaCoalescentModel.getTotalCoalRate(n) : 0.0 ;
+        int n = 0;
+        int nextSampEvent = 0;
 
-            // Increment time
-            t += Randomizer.nextExponential(totalPropensity);
+        for (int i=0; i<=coalEventCount; i++) {
+            double t = i<coalEventCount
+                    ? eventSimulator.getEventTime(i)
+                    : Double.POSITIVE_INFINITY;
 
-            // Check whether next sample time exceeded.
-            if (!sampleEvents.isEmpty() && t>sampleEvents.get(0).time) {
-                SampEvent sampEvent = sampleEvents.get(0);
-                t = sampEvent.time;
+            while (nextSampEvent < sampleEvents.size() && sampleEvents.get(nextSampEvent).time < t) {
+                SampEvent sampEvent = sampleEvents.get(nextSampEvent++);
                 sampEvent.linageCount = n;
                 n += sampEvent.getMultiplicity();
                 treeEvents.add(sampEvent);
-                sampleEvents.remove(0);
-
-                continue;
             }
 
-            // Choose reaction
-            double u = Randomizer.nextDouble()*totalPropensity;
-            int k = 2 + -(Arrays.binarySearch(betaCoalescentModel.getCumulativeCoalRateArray(n), u) + 1);
-
-            if (k>n || k<2)
-                throw new IllegalStateException("Numerical error in furcation degree sampler.");
-
-
-            // Implement coalescence
-            CoalEvent coalEvent = new CoalEvent(t, n, k-1);
-            n -= k;
-
-            treeEvents.add(coalEvent);
+            if (i<coalEventCount) {
+                int k = eventSimulator.getMergerSize(i);
+                treeEvents.add(new CoalEvent(t, n, k-1));
+                n -= k - 1;
+            }
         }
 
         return treeEvents;
     }
 
-    private void simulateTree(List<Event> treeEvents) {
+    /**
+     * Assemble tree from event sequence, drawing skyline population sizes
+     * for each group of coalescent intervals.
+     *
+     * @param treeEvents list of sampling and coalescence events
+     * @param popSizes array whose elements receive the drawn population sizes
+     * @param random source of random numbers
+     * @return simulated tree
+     */
+    private MergerTree simulateTree(List<Event> treeEvents, double[] popSizes, RandomSource random) {
 
-        int nextInternalNr = nLeaves;
+        MergerTree tree = new MergerTree(leafNames, null);
 
         // Count total number of coalescent intervals
         int nCoalescentIntervals = (int)treeEvents.stream().filter(e -> e instanceof CoalEvent).count();
 
-        int maxSkylineIntervals = skylinePopulations.getDimension();
+        int maxSkylineIntervals = popSizes.length;
 
         int mmin = nCoalescentIntervals/maxSkylineIntervals;
-        if (getInternalNodeCount() % maxSkylineIntervals > 0)
+        if (nCoalescentIntervals % maxSkylineIntervals > 0)
             mmin += 1;
 
         int groupIdx=0;
-        drawPopulationSize(groupIdx);
+        drawPopulationSize(popSizes, groupIdx, random);
 
 
         int coalIntervalIdx = 0;
 
-        List<Node> activeLineages = new ArrayList<>();
-        List<Node> coalescingLineages = new ArrayList<>();
+        LineagePool activeLineages = new LineagePool(nLeaves);
+        int[] coalescingLineages = new int[nLeaves];
 
         double t = 0.0;
 
         for (int i=0; i<treeEvents.size(); i++) {
 
             double dt = i>0 ? treeEvents.get(i).time-treeEvents.get(i-1).time : 0.0;
-            t += dt*skylinePopulations.getArrayValue(groupIdx);
+            t += dt*popSizes[groupIdx];
 
             if (treeEvents.get(i) instanceof SampEvent) {
                 SampEvent sampEvent = (SampEvent)treeEvents.get(i);
 
-                for (Node leafNode : sampEvent.leafNodes) {
-                    leafNode.setHeight(t);
-                    activeLineages.add(leafNode);
+                for (int leafNr : sampEvent.leafNrs) {
+                    tree.setLeafHeight(leafNr, t);
+                    activeLineages.add(leafNr);
                 }
 
             } else {
                 CoalEvent coalEvent = (CoalEvent)treeEvents.get(i);
                 int k = coalEvent.getMultiplicity() + 1;
 
-                Node newParent = new Node(String.valueOf(nextInternalNr));
-                newParent.setNr(nextInternalNr++);
-                newParent.setHeight(t);
-
-                int[] indices = Randomizer.shuffled(activeLineages.size());
-
-                coalescingLineages.clear();
-                for (int l=0; l<k; l++)
-                    coalescingLineages.add(activeLineages.get(indices[l]));
-
-                newParent.addChild(coalescingLineages.get(0));
-                newParent.addChild(coalescingLineages.get(1));
-
-                for (int l=2; l<k; l++) {
-                    Node newNewParent = new Node(String.valueOf(nextInternalNr));
-                    newNewParent.setNr(nextInternalNr++);
-                    newNewParent.setHeight(t);
-
-                    newNewParent.addChild(newParent);
-                    newNewParent.addChild(coalescingLineages.get(l));
-
-                    newParent = newNewParent;
-                }
-
-                activeLineages.removeAll(coalescingLineages);
-
-                activeLineages.add(newParent);
+                activeLineages.removeRandom(k, coalescingLineages, random);
+                activeLineages.add(tree.addMerger(coalescingLineages, k, t));
 
                 // Switch to next pop size group if necessary
 
                 if (coalIntervalIdx/mmin > groupIdx && (nCoalescentIntervals - (coalIntervalIdx + 1)) > mmin) {
                     groupIdx += 1;
-                    drawPopulationSize(groupIdx);
+                    drawPopulationSize(popSizes, groupIdx, random);
                 }
 
                 coalIntervalIdx += 1;
             }
         }
 
-        assignFromWithoutID(new Tree(activeLineages.get(0)));
+        return tree;
     }
 
     /**
      * Sample and set a new coalescent interval group population size.
+     * Draws are made by inversion so that each replicate's population
+     * sizes depend only on its own random number stream.
      *
+     * @param popSizes array of population sizes
      * @param groupIdx index of coalescent interval group
+     * @param random source of random numbers
      */
-    private void drawPopulationSize(int groupIdx) {
+    private void drawPopulationSize(double[] popSizes, int groupIdx, RandomSource random) {
         try {
-            skylinePopulations.setValue(groupIdx, skylinePopDistr.sample(1)[0][0]);
+            double u = random.nextDouble();
+
+            // Distributions are not guaranteed to be safe for concurrent
+            // use, so draws are serialised.  The lock is not a bottleneck:
+            // a replicate takes it once per skyline group, at most
+            // skylinePopulations.getDimension() times, while its O(nLeaves)
+            // merger size draws and lineage selections are made without it.
+            synchronized (skylinePopDistr) {
+                popSizes[groupIdx] = skylinePopDistr.inverseCumulativeProbability(u);
+            }
         } catch (MathException e) {
             e.printStackTrace();
         }
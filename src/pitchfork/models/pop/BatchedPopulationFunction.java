@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2019. Tim Vaughan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pitchfork.models.pop;
+
+/**
+ * Population function able to compute the quantities needed by coalescent
+ * likelihoods for a whole sequence of consecutive intervals in one pass.
+ */
+public interface BatchedPopulationFunction {
+
+    /**
+     * Compute the intensity integral over each of the intervals from..to-1
+     * and the log population size at the end of each of these intervals.
+     * Interval i spans the time between endTimes[i-1] (or 0 for i=0) and
+     * endTimes[i].
+     *
+     * @param endTimes interval end times, in increasing order
+     * @param from index of first interval
+     * @param to index one past the last interval
+     * @param integrals array in which to place the integral of 1/N(t)
+     *                  over each interval, indexed by interval
+     * @param logPopSizes array in which to place log N(t) at the end of
+     *                    each interval, indexed by interval
+     */
+    void getIntervalIntegrals(double[] endTimes, int from, int to,
+                              double[] integrals, double[] logPopSizes);
+}
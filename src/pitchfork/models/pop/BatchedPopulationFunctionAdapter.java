@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2019. Tim Vaughan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pitchfork.models.pop;
+
+import beast.base.evolution.tree.coalescent.PopulationFunction;
+
+/**
+ * Provides the batched interface for population functions which do not
+ * implement it themselves, by evaluating each interval separately.
+ */
+public class BatchedPopulationFunctionAdapter implements BatchedPopulationFunction {
+
+    private final PopulationFunction populationFunction;
+
+    public BatchedPopulationFunctionAdapter(PopulationFunction populationFunction) {
+        this.populationFunction = populationFunction;
+    }
+
+    /**
+     * @param populationFunction population function
+     * @return populationFunction itself if it implements the batched
+     * interface, otherwise an adapter for it.
+     */
+    public static BatchedPopulationFunction getBatched(PopulationFunction populationFunction) {
+        if (populationFunction instanceof BatchedPopulationFunction)
+            return (BatchedPopulationFunction) populationFunction;
+        else
+            return new BatchedPopulationFunctionAdapter(populationFunction);
+    }
+
+    @Override
+    public void getIntervalIntegrals(double[] endTimes, int from, int to,
+                                     double[] integrals, double[] logPopSizes) {
+
+        double t = from > 0 ? endTimes[from-1] : 0.0;
+        for (int i=from; i<to; i++) {
+            integrals[i] = populationFunction.getIntegral(t, endTimes[i]);
+            logPopSizes[i] = Math.log(populationFunction.getPopSize(endTimes[i]));
+            t = endTimes[i];
+        }
+    }
+}
@@ -31,7 +31,8 @@ import java.util.List;
 
 
 @Description("Piecewise constant/linear population function.")
-public class PiecewisePopulationFunction extends PopulationFunction.Abstract implements Loggable {
+public class PiecewisePopulationFunction extends PopulationFunction.Abstract
+        implements BatchedPopulationFunction, Loggable {
 
     public Input<RealParameter> popSizesInput = new Input<>("popSizes",
             "Population sizes in intervals", Input.Validate.REQUIRED);
@@ -51,6 +52,28 @@ public class PiecewisePopulationFunction extends PopulationFunction.Abstract imp
 
     private double[] intervalStartTimes, intervalStartIntensities;
 
+    /* Population size in each interval and its reciprocal, and the
+       reciprocal of the interval length when intervals are evenly
+       spaced. */
+    private double[] intervalPopSizes, reciprocalPopSizes;
+    private double reciprocalIntervalLength;
+
+    /* The interval start times and intensities are only recomputed by
+       prepare() when the parameters or (for evenly spaced intervals) the
+       tree root height have changed since they were last computed.
+       Parameter changes are normally signalled by requiresRecalculation(),
+       which is not called when the parameters are modified outside of
+       MCMC, so prepare() also compares the values of any parameter which
+       reports itself dirty with those last used. */
+    private boolean needsPrepare;
+    private double preparedRootHeight;
+
+    private double[] storedIntervalStartTimes, storedIntervalStartIntensities;
+    private double[] storedIntervalPopSizes, storedReciprocalPopSizes;
+    private boolean storedNeedsPrepare;
+    private double storedPreparedRootHeight, storedReciprocalIntervalLength;
+    private boolean hasStoredCopy;
+
     @Override
     public void initAndValidate() {
         popSizes = popSizesInput.get();
@@ -65,6 +88,16 @@ public class PiecewisePopulationFunction extends PopulationFunction.Abstract imp
 
         intervalStartTimes = new double[intervalCount];
         intervalStartIntensities = new double[intervalCount];
+        storedIntervalStartTimes = new double[intervalCount];
+        storedIntervalStartIntensities = new double[intervalCount];
+        intervalPopSizes = new double[intervalCount];
+        storedIntervalPopSizes = new double[intervalCount];
+        reciprocalPopSizes = new double[intervalCount];
+        storedReciprocalPopSizes = new double[intervalCount];
+
+        needsPrepare = true;
+        storedNeedsPrepare = true;
+        hasStoredCopy = true;
 
         super.initAndValidate();
     }
@@ -81,11 +114,40 @@ public class PiecewisePopulationFunction extends PopulationFunction.Abstract imp
 
     @Override
     public void prepare() {
+        if (!needsPrepare && parametersChanged())
+            needsPrepare = true;
+
+        if (!needsPrepare && (!evenlySpaced || tree.getRoot().getHeight() == preparedRootHeight))
+            return;
+
+        // The arrays are overwritten in full below, so the stored state
+        // can be kept by swapping rather than copying.
+        if (!hasStoredCopy) {
+            double[] tmp = intervalStartTimes;
+            intervalStartTimes = storedIntervalStartTimes;
+            storedIntervalStartTimes = tmp;
+
+            tmp = intervalStartIntensities;
+            intervalStartIntensities = storedIntervalStartIntensities;
+            storedIntervalStartIntensities = tmp;
+
+            tmp = intervalPopSizes;
+            intervalPopSizes = storedIntervalPopSizes;
+            storedIntervalPopSizes = tmp;
+
+            tmp = reciprocalPopSizes;
+            reciprocalPopSizes = storedReciprocalPopSizes;
+            storedReciprocalPopSizes = tmp;
+
+            hasStoredCopy = true;
+        }
 
         intervalStartTimes[0] = 0.0;
 
         if (evenlySpaced) {
-            double intervalLength = tree.getRoot().getHeight()/intervalCount;
+            preparedRootHeight = tree.getRoot().getHeight();
+            double intervalLength = preparedRootHeight/intervalCount;
+            reciprocalIntervalLength = 1.0/intervalLength;
 
             for (int i=1; i<intervalStartTimes.length; i++) {
                 intervalStartTimes[i] = i*intervalLength;
@@ -96,26 +158,86 @@ public class PiecewisePopulationFunction extends PopulationFunction.Abstract imp
                 intervalStartTimes[i] = changeTimes.getValue(i - 1);
         }
 
+        for (int i = 0; i < intervalCount; i++) {
+            intervalPopSizes[i] = getIntervalPopSize(i);
+            reciprocalPopSizes[i] = 1.0/intervalPopSizes[i];
+        }
+
         intervalStartIntensities[0] = 0.0;
 
         for (int i = 1; i < intervalStartIntensities.length; i++) {
             intervalStartIntensities[i] = intervalStartIntensities[i - 1]
-                    + (intervalStartTimes[i] - intervalStartTimes[i-1]) / popSizes.getValue(i - 1);
+                    + (intervalStartTimes[i] - intervalStartTimes[i-1])*reciprocalPopSizes[i - 1];
+        }
+
+        needsPrepare = false;
+    }
+
+    /**
+     * @return true if a parameter reporting itself dirty holds values
+     * other than those used when the arrays were last computed
+     */
+    private boolean parametersChanged() {
+        if (popSizes.somethingIsDirty()) {
+            for (int i = 0; i < intervalCount; i++)
+                if (getIntervalPopSize(i) != intervalPopSizes[i])
+                    return true;
+        }
+
+        if (changeTimes != null && changeTimes.somethingIsDirty()) {
+            for (int i = 1; i < intervalCount; i++)
+                if (changeTimes.getValue(i - 1) != intervalStartTimes[i])
+                    return true;
         }
+
+        return false;
     }
 
     @Override
     protected boolean requiresRecalculation() {
-        return true;
+        if (popSizes.somethingIsDirty()
+                || (changeTimes != null && changeTimes.somethingIsDirty()))
+            needsPrepare = true;
+
+        return needsPrepare
+                || (evenlySpaced && tree.getRoot().getHeight() != preparedRootHeight);
     }
 
     @Override
     protected void store() {
+        storedNeedsPrepare = needsPrepare;
+        storedPreparedRootHeight = preparedRootHeight;
+        storedReciprocalIntervalLength = reciprocalIntervalLength;
+        hasStoredCopy = false;
+
         super.store();
     }
 
     @Override
     protected void restore() {
+        if (hasStoredCopy) {
+            double[] tmp = intervalStartTimes;
+            intervalStartTimes = storedIntervalStartTimes;
+            storedIntervalStartTimes = tmp;
+
+            tmp = intervalStartIntensities;
+            intervalStartIntensities = storedIntervalStartIntensities;
+            storedIntervalStartIntensities = tmp;
+
+            tmp = intervalPopSizes;
+            intervalPopSizes = storedIntervalPopSizes;
+            storedIntervalPopSizes = tmp;
+
+            tmp = reciprocalPopSizes;
+            reciprocalPopSizes = storedReciprocalPopSizes;
+            storedReciprocalPopSizes = tmp;
+        }
+
+        needsPrepare = storedNeedsPrepare;
+        preparedRootHeight = storedPreparedRootHeight;
+        reciprocalIntervalLength = storedReciprocalIntervalLength;
+        hasStoredCopy = false;
+
         super.restore();
     }
 
@@ -126,15 +248,7 @@ public class PiecewisePopulationFunction extends PopulationFunction.Abstract imp
         if (t <= 0)
             return popSizes.getValue(0);
 
-        if (t >= intervalStartTimes[intervalStartTimes.length-1])
-            return popSizes.getValue(popSizes.getDimension()-1);
-
-        int interval = Arrays.binarySearch(intervalStartTimes, t);
-
-        if (interval<0)
-            interval = -(interval + 1) - 1;  // boundary to the left of time.
-
-        return popSizes.getValue(interval);
+        return getIntervalPopSize(getIntervalIndex(t));
     }
 
     @Override
@@ -144,17 +258,10 @@ public class PiecewisePopulationFunction extends PopulationFunction.Abstract imp
         if (t <= 0 )
             return -t/popSizes.getValue(0);
 
-        if (t >= intervalStartTimes[intervalStartTimes.length-1])
-            return intervalStartIntensities[intervalStartIntensities.length-1]
-                    + (t- intervalStartTimes[intervalStartIntensities.length-1])
-                    /popSizes.getValue(popSizes.getDimension()-1);
-
-        int interval = Arrays.binarySearch(intervalStartTimes, t);
+        int interval = getIntervalIndex(t);
 
-        if (interval<0)
-            interval = -(interval + 1) - 1; // boundary to the left of time.
-
-        return intervalStartIntensities[interval] + (t- intervalStartTimes[interval])/popSizes.getValue(interval);
+        return intervalStartIntensities[interval]
+                + (t - intervalStartTimes[interval])*reciprocalPopSizes[interval];
     }
 
     @Override
@@ -164,18 +271,109 @@ public class PiecewisePopulationFunction extends PopulationFunction.Abstract imp
         if (x<=0.0)
             return -x*popSizes.getValue(0);
 
-        if (x >= intervalStartIntensities[intervalStartIntensities.length-1])
-            return intervalStartTimes[intervalStartTimes.length-1]
-                    + (x - intervalStartIntensities[intervalStartIntensities.length-1])
-                    *popSizes.getValue(popSizes.getDimension()-1);
+        // Intensities are not evenly spaced even when the interval times
+        // are, so a binary search is always used here.
 
-        int interval = Arrays.binarySearch(intervalStartIntensities, x);
+        int interval;
+        if (x >= intervalStartIntensities[intervalCount-1])
+            interval = intervalCount-1;
+        else {
+            interval = Arrays.binarySearch(intervalStartIntensities, x);
 
-        if (interval<0)
-            interval = -(interval + 1) - 1; // boundary to the left of x
+            if (interval<0)
+                interval = -(interval + 1) - 1; // boundary to the left of x
+        }
 
         return intervalStartTimes[interval]
-                + (x- intervalStartIntensities[interval])*popSizes.getValue(interval);
+                + (x - intervalStartIntensities[interval])*getIntervalPopSize(interval);
+    }
+
+    /**
+     * @param t time
+     * @return index of interval containing time t
+     */
+    private int getIntervalIndex(double t) {
+        if (t <= 0)
+            return 0;
+
+        if (t >= intervalStartTimes[intervalCount-1])
+            return intervalCount-1;
+
+        int interval;
+
+        if (evenlySpaced) {
+            // Compute the index directly, then correct for any rounding
+            // error so the result agrees with intervalStartTimes.
+            interval = (int) (t*reciprocalIntervalLength);
+
+            if (interval > intervalCount-1)
+                interval = intervalCount-1;
+
+            if (intervalStartTimes[interval] > t)
+                interval -= 1;
+            else if (interval < intervalCount-1 && intervalStartTimes[interval+1] <= t)
+                interval += 1;
+
+        } else {
+            interval = Arrays.binarySearch(intervalStartTimes, t);
+
+            if (interval<0)
+                interval = -(interval + 1) - 1; // boundary to the left of time.
+        }
+
+        return interval;
+    }
+
+    /**
+     * @param interval interval index
+     * @return population size within given interval
+     */
+    private double getIntervalPopSize(int interval) {
+        if (interval == intervalCount-1)
+            return popSizes.getValue(popSizes.getDimension()-1);
+        else
+            return popSizes.getValue(interval);
+    }
+
+    @Override
+    public void getIntervalIntegrals(double[] endTimes, int from, int to,
+                                     double[] integrals, double[] logPopSizes) {
+        prepare();
+
+        if (from >= to)
+            return;
+
+        // Walk through the population intervals alongside the given
+        // intervals, so that each boundary is located only once.
+
+        double t = from > 0 ? endTimes[from-1] : 0.0;
+        int interval = getIntervalIndex(t);
+        double logPopSize = Math.log(getIntervalPopSize(interval));
+
+        double intensity = t <= 0
+                ? -t/popSizes.getValue(0)
+                : intervalStartIntensities[interval]
+                        + (t - intervalStartTimes[interval])*reciprocalPopSizes[interval];
+
+        for (int i=from; i<to; i++) {
+            double tEnd = endTimes[i];
+
+            if (interval < intervalCount-1 && intervalStartTimes[interval+1] <= tEnd) {
+                do {
+                    interval += 1;
+                } while (interval < intervalCount-1 && intervalStartTimes[interval+1] <= tEnd);
+
+                logPopSize = Math.log(getIntervalPopSize(interval));
+            }
+
+            double endIntensity = intervalStartIntensities[interval]
+                    + (tEnd - intervalStartTimes[interval])*reciprocalPopSizes[interval];
+
+            integrals[i] = endIntensity - intensity;
+            logPopSizes[i] = logPopSize;
+
+            intensity = endIntensity;
+        }
     }
 
     // Loggable implementation:
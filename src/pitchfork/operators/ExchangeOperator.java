@@ -19,16 +19,14 @@ package pitchfork.operators;
 
 import beast.base.core.Description;
 import beast.base.core.Input;
-import beast.base.evolution.operator.TreeOperator;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.util.Randomizer;
+import pitchfork.LogicalNodeIndex;
 import pitchfork.Pitchforks;
 
-import java.util.List;
-
 @Description("Exchange operator compatible with pitchfork trees.")
-public class ExchangeOperator extends TreeOperator {
+public class ExchangeOperator extends PitchforkTreeOperator {
 
     public Input<Boolean> isNarrowInput = new Input<>(
             "isNarrow",
@@ -42,34 +40,36 @@ public class ExchangeOperator extends TreeOperator {
     public void initAndValidate() {
         isNarrow = isNarrowInput.get();
         tree = treeInput.get();
+        index = LogicalNodeIndex.getIndex(tree);
     }
 
     @Override
     public double proposal() {
 
         if (isNarrow) {
-            List<Node> trueNodes = Pitchforks.getTrueNodes(tree);
-
-            if (trueNodes.size() - tree.getLeafNodeCount() <= 1)
+            if (index.getTrueInternalNodeCount() <= 1)
                 return Double.NEGATIVE_INFINITY;
 
+            int nTrueNodes = index.getTrueNodeCount();
+
             Node srcNode, srcNodeParent, destNode, destNodeParent;
             Node srcNodeLogicalParent, srcNodeLogicalGrandparent = null;
 
             do {
-                srcNode = trueNodes.get(Randomizer.nextInt(trueNodes.size()));
-                srcNodeLogicalParent = Pitchforks.getLogicalParent(srcNode);
+                srcNode = index.getTrueNode(Randomizer.nextInt(nTrueNodes));
+                srcNodeLogicalParent = index.getLogicalParent(srcNode);
 
                 if (srcNodeLogicalParent != null)
-                    srcNodeLogicalGrandparent = Pitchforks.getLogicalParent(srcNodeLogicalParent);
+                    srcNodeLogicalGrandparent = index.getLogicalParent(srcNodeLogicalParent);
 
             } while (srcNodeLogicalParent == null || srcNodeLogicalGrandparent == null);
             srcNodeParent = srcNode.getParent();
 
-            List<Node> possibleDestNodes = Pitchforks.getLogicalChildren(srcNodeLogicalGrandparent);
+            int nPossibleDestNodes = index.getLogicalChildCount(srcNodeLogicalGrandparent);
 
             do {
-                destNode = possibleDestNodes.get(Randomizer.nextInt(possibleDestNodes.size()));
+                destNode = index.getLogicalChild(srcNodeLogicalGrandparent,
+                        Randomizer.nextInt(nPossibleDestNodes));
             } while (destNode == srcNodeLogicalParent);
             destNodeParent = destNode.getParent();
 
@@ -83,9 +83,55 @@ public class ExchangeOperator extends TreeOperator {
             srcNodeParent.addChild(destNode);
             destNodeParent.addChild(srcNode);
 
+            index.update(srcNode);
+            index.update(destNode);
+            index.update(srcNodeParent);
+            index.update(destNodeParent);
+
         } else {
-            throw new UnsupportedOperationException("Wide exchange for " +
-                    "pitchfork trees is not yet supported.");
+            int nTrueNodes = index.getTrueNodeCount();
+
+            if (nTrueNodes < 3)
+                return Double.NEGATIVE_INFINITY;
+
+            // Select two distinct non-root true nodes:
+
+            Node srcNode, destNode;
+
+            do {
+                srcNode = index.getTrueNode(Randomizer.nextInt(nTrueNodes));
+            } while (srcNode.isRoot());
+
+            do {
+                destNode = index.getTrueNode(Randomizer.nextInt(nTrueNodes));
+            } while (destNode.isRoot() || destNode == srcNode);
+
+            Node srcNodeParent = srcNode.getParent();
+            Node destNodeParent = destNode.getParent();
+
+            // Exchanging children of the same logical node leaves the
+            // logical tree unchanged.
+            if (index.getLogicalNode(srcNodeParent) == index.getLogicalNode(destNodeParent))
+                return Double.NEGATIVE_INFINITY;
+
+            // Reject unless both exchanged edges keep a positive length.
+            // This also excludes pairs in which one node is an ancestor of
+            // the other, as the parent of the descendant is then no older
+            // than the ancestor.  Keeping the edges positive leaves the set
+            // of true nodes unchanged, so the move is symmetric.
+            if (!Pitchforks.greaterWithPrecision(srcNodeParent.getHeight(), destNode.getHeight())
+                    || !Pitchforks.greaterWithPrecision(destNodeParent.getHeight(), srcNode.getHeight()))
+                return Double.NEGATIVE_INFINITY;
+
+            srcNodeParent.removeChild(srcNode);
+            destNodeParent.removeChild(destNode);
+            srcNodeParent.addChild(destNode);
+            destNodeParent.addChild(srcNode);
+
+            index.update(srcNode);
+            index.update(destNode);
+            index.update(srcNodeParent);
+            index.update(destNodeParent);
         }
 
 
@@ -18,16 +18,12 @@
 package pitchfork.operators;
 
 import beast.base.core.Input;
-import beast.base.evolution.operator.TreeOperator;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.util.Randomizer;
-import pitchfork.Pitchforks;
+import pitchfork.LogicalNodeIndex;
 
-import java.util.ArrayList;
-import java.util.List;
-
-public class ExpandCollapseOperator extends TreeOperator {
+public class ExpandCollapseOperator extends PitchforkTreeOperator {
 
     public Input<Double> rootAttachLambdaInput = new Input<>("rootAttachLambda",
             "Mean of exponential (relative to tree height) from which " +
@@ -35,13 +31,20 @@ public class ExpandCollapseOperator extends TreeOperator {
                     "root polytomy.",
             0.1);
 
+    public Input<Boolean> optimiseInput = new Input<>("optimise",
+            "Automatically adjust rootAttachLambda to achieve a good acceptance rate.",
+            true);
+
     Tree tree;
     double lambda;
+    boolean optimise, lastProposalUsedRootEdge;
 
     @Override
     public void initAndValidate() {
         tree = treeInput.get();
         lambda = rootAttachLambdaInput.get();
+        optimise = optimiseInput.get();
+        index = LogicalNodeIndex.getIndex(tree);
     }
 
     @Override
@@ -49,21 +52,24 @@ public class ExpandCollapseOperator extends TreeOperator {
 
         double logHR = 0.0;
 
+        lastProposalUsedRootEdge = false;
+
         if (Randomizer.nextBoolean()) {
             // Collapse
 
-            List<Node> collapsableEdges = getCollapsableEdges(tree);
+            int nCollapsableEdges = index.getCollapsableEdgeCount();
 
-            if (collapsableEdges.isEmpty())
+            if (nCollapsableEdges == 0)
                 return Double.NEGATIVE_INFINITY;
 
-            Node edgeToCollapse = collapsableEdges.get(Randomizer.nextInt(collapsableEdges.size()));
-            logHR -= Math.log(1.0/collapsableEdges.size());
+            Node edgeToCollapse = index.getCollapsableEdge(Randomizer.nextInt(nCollapsableEdges));
+            logHR -= Math.log(1.0/nCollapsableEdges);
 
             Node edgeParent = edgeToCollapse.getParent();
             Node sister = getOtherChild(edgeParent, edgeToCollapse);
 
             if (edgeParent.isRoot()) {
+                lastProposalUsedRootEdge = true;
                 double expRate = 1.0/(lambda*sister.getHeight());
                 logHR += -expRate*(edgeParent.getHeight() - sister.getHeight()) + Math.log(expRate);
             } else {
@@ -72,25 +78,27 @@ public class ExpandCollapseOperator extends TreeOperator {
             }
 
             edgeParent.setHeight(sister.getHeight());
+            index.update(edgeParent);
 
-            logHR += Math.log(1.0/getExpandableEdges(tree).size());
+            logHR += Math.log(1.0/index.getExpandableEdgeCount());
 
         } else {
             // Expand
 
-            List<Node> expandableEdges = getExpandableEdges(tree);
+            int nExpandableEdges = index.getExpandableEdgeCount();
 
-            if (expandableEdges.isEmpty())
+            if (nExpandableEdges == 0)
                 return Double.NEGATIVE_INFINITY;
 
-            Node edgeToExpand = expandableEdges.get(Randomizer.nextInt(expandableEdges.size()));
-            logHR -= Math.log(1.0/expandableEdges.size());
+            Node edgeToExpand = index.getExpandableEdge(Randomizer.nextInt(nExpandableEdges));
+            logHR -= Math.log(1.0/nExpandableEdges);
 
-            Node logicalParent = Pitchforks.getLogicalParent(edgeToExpand);
+            Node logicalParent = index.getLogicalParent(edgeToExpand);
             assert logicalParent != null;
 
             double newHeight;
             if (logicalParent.isRoot()) {
+                lastProposalUsedRootEdge = true;
                 double expRate = 1.0/(lambda*logicalParent.getHeight());
                 newHeight = logicalParent.getHeight() + Randomizer.nextExponential(expRate);
                 logHR -= -expRate*(newHeight - logicalParent.getHeight()) + Math.log(expRate);
@@ -138,44 +146,37 @@ public class ExpandCollapseOperator extends TreeOperator {
             // Set new node height
             nodeToMove.setHeight(newHeight);
 
+            index.update(nodeToMove);
+            index.update(sisterNode);
+            index.update(logicalParent);
+            if (nodeToMoveParent != null)
+                index.update(nodeToMoveParent);
+            if (!nodeToMove.isRoot())
+                index.update(nodeToMove.getParent());
+
             // Complete HR calculation
 
-            logHR += Math.log(1.0/getCollapsableEdges(tree).size());
+            logHR += Math.log(1.0/index.getCollapsableEdgeCount());
         }
 
 
         return logHR;
     }
 
-    private List<Node> getCollapsableEdges(Tree tree) {
-
-        List<Node> trueNodes = Pitchforks.getTrueNodes(tree);
-        List<Node> collapsableEdges = new ArrayList<>();
-
-        for (Node node : trueNodes) {
-            if (node.isRoot() || Pitchforks.isPolytomy(node.getParent()))
-                    continue;
-
-            Node sister = getOtherChild(node.getParent(), node);
-            if (sister.getHeight() < node.getHeight() || sister.isLeaf())
-                continue;
-
-            collapsableEdges.add(node);
-        }
-
-        return collapsableEdges;
+    @Override
+    public void optimize(double logAlpha) {
+        // Only proposals involving root polytomies depend on lambda.
+        if (optimise && lastProposalUsedRootEdge)
+            setCoercableParameterValue(getOptimisedSize(lambda, logAlpha));
     }
 
-    private List<Node> getExpandableEdges(Tree tree) {
-
-        List<Node> trueNodes = Pitchforks.getTrueNodes(tree);
-        List<Node> expandableEdges = new ArrayList<>();
-
-        for (Node node : trueNodes) {
-            if (!node.isRoot() && Pitchforks.isPolytomy(node.getParent()))
-                expandableEdges.add(node);
-        }
+    @Override
+    public double getCoercableParameterValue() {
+        return lambda;
+    }
 
-        return expandableEdges;
+    @Override
+    public void setCoercableParameterValue(double value) {
+        lambda = value;
     }
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2019. Tim Vaughan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package pitchfork.operators;
+
+import beast.base.evolution.operator.TreeOperator;
+import beast.base.inference.Evaluator;
+import pitchfork.LogicalNodeIndex;
+
+import java.text.DecimalFormat;
+
+/**
+ * Base class for operators on pitchfork trees.  Such operators share a
+ * LogicalNodeIndex of the tree, which each subclass obtains in its
+ * initAndValidate() and keeps up to date by calling index.update() for
+ * every node it modifies.  The start of each proposal and any rejection
+ * are reported to the index here, so that it can catch up with changes
+ * made to the tree by other means.
+ *
+ * Also provides helpers for operators which tune a step size or scale
+ * factor toward the target acceptance probability.
+ */
+public abstract class PitchforkTreeOperator extends TreeOperator {
+
+    protected LogicalNodeIndex index;
+
+    @Override
+    public double proposal(Evaluator evaluator) {
+        if (index != null)
+            index.beginProposal();
+
+        return super.proposal(evaluator);
+    }
+
+    @Override
+    public void reject(int reason) {
+        if (index != null)
+            index.reject();
+
+        super.reject(reason);
+    }
+
+    /**
+     * Adapt a positive step size on the log scale.
+     *
+     * @param size current size
+     * @param logAlpha log acceptance probability of last proposal
+     * @return new size
+     */
+    protected double getOptimisedSize(double size, double logAlpha) {
+        return Math.exp(calcDelta(logAlpha) + Math.log(size));
+    }
+
+    /**
+     * Adapt a scale factor lying between 0 and 1 on the logit scale.
+     *
+     * @param scaleFactor current scale factor
+     * @param logAlpha log acceptance probability of last proposal
+     * @return new scale factor
+     */
+    protected double getOptimisedScaleFactor(double scaleFactor, double logAlpha) {
+        double delta = calcDelta(logAlpha) + Math.log(1.0/scaleFactor - 1.0);
+        return 1.0/(Math.exp(delta) + 1.0);
+    }
+
+    /**
+     * Suggest a new value for a step size, given the acceptance rate.
+     *
+     * @param name name of step size input
+     * @param size current step size
+     * @return suggestion, or an empty string if size seems appropriate
+     */
+    protected String getSizeSuggestion(String name, double size) {
+        if (m_nNrAccepted + m_nNrRejected == 0)
+            return "";
+
+        double prob = m_nNrAccepted/(m_nNrAccepted + m_nNrRejected + 0.0);
+        double ratio = Math.max(0.5, Math.min(2.0, prob/getTargetAcceptanceProbability()));
+        DecimalFormat formatter = new DecimalFormat("#.###");
+
+        if (prob < 0.10)
+            return "Try decreasing " + name + " to about " + formatter.format(size*ratio);
+        else if (prob > 0.40)
+            return "Try increasing " + name + " to about " + formatter.format(size*ratio);
+        else
+            return "";
+    }
+
+    /**
+     * Suggest a new value for a scale factor, given the acceptance rate.
+     *
+     * @param name name of scale factor input
+     * @param scaleFactor current scale factor, between 0 and 1
+     * @return suggestion, or an empty string if scale factor seems appropriate
+     */
+    protected String getScaleFactorSuggestion(String name, double scaleFactor) {
+        return getScaleFactorSuggestion(name, scaleFactor, m_nNrAccepted, m_nNrRejected);
+    }
+
+    /**
+     * Suggest a new value for a scale factor, given the acceptance rate of
+     * those proposals which depend on it.
+     *
+     * @param name name of scale factor input
+     * @param scaleFactor current scale factor, between 0 and 1
+     * @param nAccepted number of these proposals accepted
+     * @param nRejected number of these proposals rejected
+     * @return suggestion, or an empty string if scale factor seems appropriate
+     */
+    protected String getScaleFactorSuggestion(String name, double scaleFactor,
+                                              int nAccepted, int nRejected) {
+        if (nAccepted + nRejected == 0)
+            return "";
+
+        double prob = nAccepted/(nAccepted + nRejected + 0.0);
+        double ratio = Math.max(0.5, Math.min(2.0, prob/getTargetAcceptanceProbability()));
+        DecimalFormat formatter = new DecimalFormat("#.###");
+
+        if (prob < 0.10 || prob > 0.40)
+            return "Try setting " + name + " to about " + formatter.format(Math.pow(scaleFactor, ratio));
+        else
+            return "";
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2019. Tim Vaughan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pitchfork.operators;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.util.Randomizer;
+import pitchfork.LogicalNodeIndex;
+import pitchfork.NodeBuffer;
+import pitchfork.models.BetaCoalescentDistribution;
+import pitchfork.models.BetaCoalescentModel;
+import pitchfork.models.CollapsedTreeIntervals;
+import pitchfork.models.pop.BatchedPopulationFunction;
+import pitchfork.models.pop.BatchedPopulationFunctionAdapter;
+
+import static pitchfork.Pitchforks.getGroupAndLogicalChildren;
+import static pitchfork.Pitchforks.greaterWithPrecision;
+
+/**
+ * Selects a logical node together with its logical parent and resamples
+ * which of the lineages below these two mergers join at the younger one
+ * and which at the older.  Merger heights are left unchanged.
+ *
+ * The number of lineages joining at the younger merger is drawn from its
+ * exact conditional distribution under the Beta-coalescent prior, and the
+ * lineages themselves and the binary resolutions of both groups are then
+ * drawn uniformly.  The Hastings ratio therefore cancels the change in the
+ * tree prior, so acceptance depends only on the remaining terms of the
+ * posterior.  This allows the degree of a polytomy to change by any number
+ * of lineages in a single step.
+ */
+@Description("Resamples the sizes of a pair of adjacent mergers from their " +
+        "conditional distribution under the Beta-coalescent prior.")
+public class PolytomyGibbsOperator extends PitchforkTreeOperator {
+
+    public Input<BetaCoalescentDistribution> distributionInput = new Input<>(
+            "distribution",
+            "Beta-coalescent tree prior from which merger sizes are sampled.",
+            Input.Validate.REQUIRED);
+
+    Tree tree;
+    BetaCoalescentModel model;
+    CollapsedTreeIntervals intervals;
+    BatchedPopulationFunction populationFunction;
+
+    NodeBuffer group = new NodeBuffer();
+    NodeBuffer logicalChildren = new NodeBuffer();
+
+    /* Scratch space for the nodes making up both groups, the lineages
+       which may merge at either node, those which must merge at the
+       logical parent, and the nodes of a partially built group. */
+    Node[] groupNodes, lineages, parentLineages, subtreeNodes;
+    int nUsedGroupNodes;
+
+    double[] logPriors, weights, intervalIntegrals, intervalLogPopSizes;
+
+    /* Logs of k! and of the number (2k-3)!! of binary resolutions of a
+       merger of k lineages. */
+    double[] logFactorials, logResolutionCounts;
+
+    @Override
+    public void initAndValidate() {
+        tree = treeInput.get();
+        index = LogicalNodeIndex.getIndex(tree);
+
+        BetaCoalescentDistribution distribution = distributionInput.get();
+        model = distribution.betaCoalescentModelInput.get();
+        intervals = distribution.collapsedTreeIntervalsInput.get();
+        populationFunction = BatchedPopulationFunctionAdapter.getBatched(
+                distribution.populationFunctionInput.get());
+
+        if (intervals.treeInput.get() != tree)
+            throw new IllegalArgumentException("Operator and distribution " +
+                    "must act on the same tree.");
+
+        int nodeCount = tree.getNodeCount();
+
+        groupNodes = new Node[nodeCount];
+        lineages = new Node[nodeCount];
+        parentLineages = new Node[nodeCount];
+        subtreeNodes = new Node[nodeCount];
+
+        logPriors = new double[nodeCount+1];
+        weights = new double[nodeCount+1];
+        intervalIntegrals = new double[nodeCount+1];
+        intervalLogPopSizes = new double[nodeCount+1];
+
+        logFactorials = new double[nodeCount+1];
+        logResolutionCounts = new double[nodeCount+1];
+        for (int k=2; k<=nodeCount; k++) {
+            logFactorials[k] = logFactorials[k-1] + Math.log(k);
+            logResolutionCounts[k] = logResolutionCounts[k-1] + Math.log(2*k-3);
+        }
+    }
+
+    @Override
+    public double proposal() {
+
+        int nTrueInternalNodes = index.getTrueInternalNodeCount();
+        if (nTrueInternalNodes < 2)
+            return Double.NEGATIVE_INFINITY;
+
+        Node node;
+        do {
+            node = index.getTrueInternalNode(Randomizer.nextInt(nTrueInternalNodes));
+        } while (node.isRoot());
+
+        Node logicalParent = index.getLogicalParent(node);
+
+        double height = node.getHeight();
+        double parentHeight = logicalParent.getHeight();
+
+        // Collect the members of both groups, which are reused to build the
+        // new groups, and the lineages below each merger.  Lineages below
+        // the logical parent which are older than node must remain there.
+
+        nUsedGroupNodes = 0;
+        int nGroupNodes = 0, nLineages = 0, nParentLineages = 0;
+
+        group.clear();
+        logicalChildren.clear();
+        getGroupAndLogicalChildren(node, group, logicalChildren);
+
+        groupNodes[nGroupNodes++] = node;
+        for (int i=0; i<group.size(); i++)
+            groupNodes[nGroupNodes++] = group.get(i);
+        for (int i=0; i<logicalChildren.size(); i++)
+            lineages[nLineages++] = logicalChildren.get(i);
+
+        int degree = nLineages;
+
+        group.clear();
+        logicalChildren.clear();
+        getGroupAndLogicalChildren(logicalParent, group, logicalChildren);
+
+        groupNodes[nGroupNodes++] = logicalParent;
+        for (int i=0; i<group.size(); i++)
+            groupNodes[nGroupNodes++] = group.get(i);
+        for (int i=0; i<logicalChildren.size(); i++) {
+            Node lineage = logicalChildren.get(i);
+            if (lineage == node)
+                continue;
+
+            if (greaterWithPrecision(height, lineage.getHeight()))
+                lineages[nLineages++] = lineage;
+            else
+                parentLineages[nParentLineages++] = lineage;
+        }
+
+        // Compute the conditional distribution of the number of lineages
+        // merging at node.  The logical parent must retain at least two
+        // lineages, one of which is node itself.
+
+        int minDegree = 2;
+        int maxDegree = nParentLineages > 0 ? nLineages : nLineages - 1;
+
+        int nodeInterval = getIntervalIndex(height);
+        int parentInterval = getIntervalIndex(parentHeight);
+        populationFunction.getIntervalIntegrals(intervals.getIntervalEndTimes(),
+                nodeInterval, parentInterval+1, intervalIntegrals, intervalLogPopSizes);
+
+        // Weights are held as logs until they have all been computed.
+
+        double maxLogWeight = Double.NEGATIVE_INFINITY;
+        for (int k=minDegree; k<=maxDegree; k++) {
+            int parentDegree = nParentLineages + nLineages - k + 1;
+
+            logPriors[k] = getLogPrior(degree - k, nodeInterval, parentInterval);
+            weights[k] = logPriors[k]
+                    + logFactorials[nLineages] - logFactorials[k] - logFactorials[nLineages-k]
+                    + logResolutionCounts[k] + logResolutionCounts[parentDegree];
+
+            maxLogWeight = Math.max(maxLogWeight, weights[k]);
+        }
+
+        double totalWeight = 0.0;
+        for (int k=minDegree; k<=maxDegree; k++) {
+            weights[k] = Math.exp(weights[k] - maxLogWeight);
+            totalWeight += weights[k];
+        }
+
+        int newDegree = minDegree;
+        double u = Randomizer.nextDouble()*totalWeight;
+        while (newDegree < maxDegree && u >= weights[newDegree]) {
+            u -= weights[newDegree];
+            newDegree += 1;
+        }
+
+        // Choose the lineages merging at node uniformly.
+
+        for (int i=0; i<newDegree; i++) {
+            int j = i + Randomizer.nextInt(nLineages - i);
+            Node tmp = lineages[i];
+            lineages[i] = lineages[j];
+            lineages[j] = tmp;
+        }
+
+        // Rebuild both groups with uniformly chosen binary resolutions.
+
+        Node parentParent = logicalParent.getParent();
+        if (parentParent != null)
+            parentParent.removeChild(logicalParent);
+
+        for (int i=0; i<nGroupNodes; i++) {
+            Node groupNode = groupNodes[i];
+            while (groupNode.getChildCount() > 0)
+                groupNode.removeChild(groupNode.getChild(0));
+            groupNode.setParent(null);
+        }
+
+        for (int i=0; i<nLineages; i++)
+            lineages[i].setParent(null);
+        for (int i=0; i<nParentLineages; i++)
+            parentLineages[i].setParent(null);
+
+        Node newNode = resolveGroup(lineages, 0, newDegree, height);
+
+        for (int i=newDegree; i<nLineages; i++)
+            parentLineages[nParentLineages++] = lineages[i];
+        parentLineages[nParentLineages++] = newNode;
+
+        Node newLogicalParent = resolveGroup(parentLineages, 0, nParentLineages, parentHeight);
+
+        if (parentParent != null)
+            parentParent.addChild(newLogicalParent);
+        else
+            tree.setRoot(newLogicalParent);
+
+        for (int i=0; i<nGroupNodes; i++)
+            index.update(groupNodes[i]);
+        for (int i=0; i<nLineages; i++)
+            index.update(lineages[i]);
+        for (int i=0; i<nParentLineages; i++)
+            index.update(parentLineages[i]);
+        if (parentParent != null)
+            index.update(parentParent);
+
+        return logPriors[degree] - logPriors[newDegree];
+    }
+
+    /**
+     * Compute the terms of the log tree prior which depend on the number
+     * of lineages merging at node, given the change in the number of
+     * lineages present between node and its logical parent.  These are the
+     * contributions of the intervals ending at these two mergers and of
+     * those between them, as computed by BetaCoalescentDistribution.
+     *
+     * @param shift change in the number of lineages between the mergers
+     * @param nodeInterval index of interval ending at node
+     * @param parentInterval index of interval ending at logical parent
+     * @return log prior up to a constant
+     */
+    private double getLogPrior(int shift, int nodeInterval, int parentInterval) {
+        double logP = 0.0;
+
+        for (int i=nodeInterval; i<=parentInterval; i++) {
+            int n = intervals.getLineageCount(i);
+            if (i > nodeInterval)
+                n += shift;
+
+            int nNext = intervals.getLineageCount(i+1);
+            if (i < parentInterval)
+                nNext += shift;
+
+            logP -= model.getTotalCoalRate(n)*intervalIntegrals[i];
+
+            if (nNext <= n)
+                logP += model.getLogLambda(n, n - nNext + 1) - intervalLogPopSizes[i];
+        }
+
+        return logP;
+    }
+
+    /**
+     * @param height height of a node in the tree
+     * @return index of the collapsed interval ending at this height
+     */
+    private int getIntervalIndex(double height) {
+        double[] endTimes = intervals.getIntervalEndTimes();
+
+        int lo = 0, hi = intervals.getIntervalCount()-1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (endTimes[mid] < height)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+
+        if (endTimes[lo] != height)
+            throw new IllegalStateException("Tree intervals are out of date.");
+
+        return lo;
+    }
+
+    /**
+     * Join the given lineages into a single group at the given height,
+     * choosing the binary resolution of the group uniformly.  Each lineage
+     * after the first is attached above a uniformly chosen node of the
+     * group built so far, using a previously collected group node.
+     *
+     * @param groupLineages array of lineages
+     * @param from index of first lineage to join
+     * @param to index one past the last lineage to join
+     * @param height height of group
+     * @return root of new group
+     */
+    private Node resolveGroup(Node[] groupLineages, int from, int to, double height) {
+        Node groupRoot = groupLineages[from];
+
+        int nSubtreeNodes = 0;
+        subtreeNodes[nSubtreeNodes++] = groupRoot;
+
+        for (int i=from+1; i<to; i++) {
+            Node nodeBelow = subtreeNodes[Randomizer.nextInt(nSubtreeNodes)];
+            Node newNode = groupNodes[nUsedGroupNodes++];
+            newNode.setHeight(height);
+
+            if (nodeBelow == groupRoot) {
+                groupRoot = newNode;
+            } else {
+                Node nodeBelowParent = nodeBelow.getParent();
+                nodeBelowParent.removeChild(nodeBelow);
+                nodeBelowParent.addChild(newNode);
+            }
+
+            newNode.addChild(nodeBelow);
+            newNode.addChild(groupLineages[i]);
+
+            subtreeNodes[nSubtreeNodes++] = newNode;
+            subtreeNodes[nSubtreeNodes++] = groupLineages[i];
+        }
+
+        return groupRoot;
+    }
+}
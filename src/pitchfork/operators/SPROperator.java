@@ -20,19 +20,17 @@ package pitchfork.operators;
 
 import beast.base.core.Description;
 import beast.base.core.Input;
-import beast.base.evolution.operator.TreeOperator;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.util.Randomizer;
+import pitchfork.LogicalNodeIndex;
 
-import java.util.ArrayList;
-import java.util.List;
-
-import static pitchfork.Pitchforks.getTrueNodes;
+import static pitchfork.Pitchforks.greaterWithPrecision;
+import static pitchfork.Pitchforks.isLogicalNode;
 import static pitchfork.Pitchforks.isPolytomy;
 
 @Description("SPR operator for trees with polytomies.")
-public class SPROperator extends TreeOperator {
+public class SPROperator extends PitchforkTreeOperator {
 
     public Input<Double> rootAttachLambdaInput = new Input<>(
             "rootAttachLambda",
@@ -45,14 +43,21 @@ public class SPROperator extends TreeOperator {
             "Probability of attaching to existing coalescent event.",
             0.1);
 
+    public Input<Boolean> optimiseInput = new Input<>("optimise",
+            "Automatically adjust rootAttachLambda to achieve a good acceptance rate.",
+            true);
+
     Tree tree;
     Double rootAttachLambda, probCoalAttach;
+    boolean optimise, lastProposalUsedRootEdge;
 
     @Override
     public void initAndValidate() {
         rootAttachLambda = rootAttachLambdaInput.get();
         tree = treeInput.get();
         probCoalAttach = probCoalAttachInput.get();
+        optimise = optimiseInput.get();
+        index = LogicalNodeIndex.getIndex(tree);
     }
 
     @Override
@@ -60,17 +65,19 @@ public class SPROperator extends TreeOperator {
 
         double logHR = 0.0;
 
-        // Get list of nodes below finite-length edges
-        List<Node> trueNodes = getTrueNodes(tree);
+        lastProposalUsedRootEdge = false;
+
+        // Get number of nodes below finite-length edges
+        int nTrueNodes = index.getTrueNodeCount();
 
         // Record number of (true) edges in original tree:
-        int nEdges = trueNodes.size() - 1;
+        int nEdges = nTrueNodes - 1;
 
         // Select non-root subtree at random
 
         Node srcNode, srcNodeParent;
         do {
-            srcNode = trueNodes.get(Randomizer.nextInt(trueNodes.size()));
+            srcNode = index.getTrueNode(Randomizer.nextInt(nTrueNodes));
             srcNodeParent = srcNode.getParent();
         } while (srcNodeParent == null);
 
@@ -88,6 +95,7 @@ public class SPROperator extends TreeOperator {
                 logHR += Math.log(1 - probCoalAttach);
 
             if (srcNodeParent.isRoot()) {
+                lastProposalUsedRootEdge = true;
                 double offset = Math.max(srcNodeSister.getHeight(), srcNode.getHeight());
                 double expRate = 1.0/(rootAttachLambda*offset);
                 logHR += -expRate*(srcNodeParent.getHeight() - offset) + Math.log(expRate);
@@ -97,32 +105,25 @@ public class SPROperator extends TreeOperator {
             }
         }
 
+        // Select new attachment node
+
+        Node attachmentNode = selectAttachmentNode(srcNode, srcNodeParent, srcNodeSister);
+
         // Disconnect subtree
 
         srcNodeParent.removeChild(srcNodeSister);
 
+        Node srcNodeGrandparent = null;
         if (srcNodeParent.isRoot()) {
             srcNodeSister.setParent(null);
         } else {
-            Node srcNodeGrandparent = srcNodeParent.getParent();
+            srcNodeGrandparent = srcNodeParent.getParent();
             srcNodeGrandparent.removeChild(srcNodeParent);
             srcNodeGrandparent.addChild(srcNodeSister);
         }
 
         srcNodeParent.setParent(null);
 
-        // Select new attachment node
-
-        Node remainingSubtreeRoot;
-        if (srcNodeSister.isRoot())
-            remainingSubtreeRoot = srcNodeSister;
-        else
-            remainingSubtreeRoot = tree.getRoot();
-
-        List<Node> subtreeNodes = getNodesInSubtree(remainingSubtreeRoot, srcNode.getHeight());
-        Node attachmentNode = subtreeNodes.get(Randomizer.nextInt(subtreeNodes.size()));
-
-
         // Determine whether polytomy is to be created
 
         boolean newAttachIsPolytomy;
@@ -148,6 +149,7 @@ public class SPROperator extends TreeOperator {
         } else {
 
             if (attachmentNode.isRoot()) {
+                lastProposalUsedRootEdge = true;
                 double offset = Math.max(srcNode.getHeight(), attachmentNode.getHeight());
                 double expRate = 1.0/(rootAttachLambda*offset);
                 attachmentHeight = offset + Randomizer.nextExponential(expRate);
@@ -175,6 +177,7 @@ public class SPROperator extends TreeOperator {
             oldParent.removeChild(attachmentNode);
             oldParent.addChild(srcNodeParent);
             srcNodeParent.addChild(attachmentNode);
+            index.update(oldParent);
         }
 
         // Ensure correct root if set if this has been modified:
@@ -183,6 +186,12 @@ public class SPROperator extends TreeOperator {
         else if (srcNodeParent.isRoot())
             tree.setRoot(srcNodeParent);
 
+        index.update(srcNodeParent);
+        index.update(srcNodeSister);
+        index.update(attachmentNode);
+        if (srcNodeGrandparent != null)
+            index.update(srcNodeGrandparent);
+
         // Account for edge selection probability in HR:
         if (origAttachWasPolytomy != newAttachIsPolytomy) {
             if (origAttachWasPolytomy) {
@@ -195,17 +204,95 @@ public class SPROperator extends TreeOperator {
         return logHR;
     }
 
-    private List<Node> getNodesInSubtree(Node subtreeRoot, double minAge) {
-        List<Node> nodeList = new ArrayList<>();
+    @Override
+    public void optimize(double logAlpha) {
+        // Only proposals involving the root edge depend on rootAttachLambda.
+        if (optimise && lastProposalUsedRootEdge)
+            setCoercableParameterValue(getOptimisedSize(rootAttachLambda, logAlpha));
+    }
+
+    @Override
+    public double getCoercableParameterValue() {
+        return rootAttachLambda;
+    }
+
+    @Override
+    public void setCoercableParameterValue(double value) {
+        rootAttachLambda = value;
+    }
 
-        if (subtreeRoot.isRoot() || subtreeRoot.getParent().getHeight()>subtreeRoot.getHeight())
-            nodeList.add(subtreeRoot);
+    /**
+     * Select uniformly at random an attachment edge for the subtree below
+     * srcNode from those in the tree remaining once the subtree is pruned
+     * whose tops lie above srcNode.  These are the root edge together
+     * with the true edges above this height, so are drawn from the
+     * corresponding edges of the unpruned tree using the logical node
+     * index.  The only edges affected by pruning are those above srcNode,
+     * its parent and its sister, which are handled explicitly.
+     *
+     * Must be called before the subtree is pruned.
+     *
+     * @param srcNode root of subtree to be pruned
+     * @param srcNodeParent parent of srcNode
+     * @param srcNodeSister sister of srcNode
+     * @return node below the selected edge
+     */
+    private Node selectAttachmentNode(Node srcNode, Node srcNodeParent, Node srcNodeSister) {
+        double minAge = srcNode.getHeight();
+
+        // Root edge is included in addition to those counted by the index.
+        int nCandidates = index.getEdgeCountAbove(minAge) + 1;
+
+        if (isCandidate(srcNode, minAge))
+            nCandidates -= 1;
+        if (isCandidate(srcNodeParent, minAge))
+            nCandidates -= 1;
+        if (isCandidate(srcNodeSister, minAge))
+            nCandidates -= 1;
+
+        // Following pruning, the sister edge extends to the grandparent.
+        boolean sisterIsCandidate;
+        if (srcNodeParent.isRoot()) {
+            sisterIsCandidate = true;
+        } else {
+            double grandparentHeight = srcNodeParent.getParent().getHeight();
+            sisterIsCandidate = grandparentHeight > minAge
+                    && (srcNodeSister.isLeaf()
+                    || greaterWithPrecision(grandparentHeight, srcNodeSister.getHeight()));
+        }
 
-        if (subtreeRoot.getHeight()>minAge) {
-            for (Node child : subtreeRoot.getChildren())
-                nodeList.addAll(getNodesInSubtree(child, minAge));
+        if (sisterIsCandidate) {
+            nCandidates += 1;
+            if (Randomizer.nextInt(nCandidates) == 0)
+                return srcNodeSister;
         }
 
-        return nodeList;
+        int nEdgesAbove = index.getEdgeCountAbove(minAge);
+
+        Node attachmentNode;
+        do {
+            int i = Randomizer.nextInt(nEdgesAbove + 1);
+            attachmentNode = i < nEdgesAbove
+                    ? index.getEdgeAbove(minAge, i)
+                    : tree.getRoot();
+        } while (attachmentNode == srcNode
+                || attachmentNode == srcNodeParent
+                || attachmentNode == srcNodeSister);
+
+        return attachmentNode;
+    }
+
+    /**
+     * @param node node in unpruned tree
+     * @param minAge height of subtree root
+     * @return true if edge above node would be drawn from by
+     * selectAttachmentNode()
+     */
+    private boolean isCandidate(Node node, double minAge) {
+        if (node.isRoot())
+            return true;
+
+        return (node.isLeaf() || isLogicalNode(node))
+                && node.getParent().getHeight() > minAge;
     }
 }
@@ -19,11 +19,12 @@ package pitchfork.operators;
 
 import beast.base.core.Description;
 import beast.base.core.Input;
-import beast.base.evolution.operator.TreeOperator;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.util.Randomizer;
+import pitchfork.LogicalNodeIndex;
+import pitchfork.NodeBuffer;
 import pitchfork.Pitchforks;
 
 import java.util.ArrayList;
@@ -36,7 +37,7 @@ import java.util.List;
  * when the root is a polytomy, while the core operator cannot.
  */
 @Description("Scale operator for pitchfork trees.")
-public class ScaleOperator extends TreeOperator {
+public class ScaleOperator extends PitchforkTreeOperator {
 
     public Input<Boolean> rootOnlyInput = new Input<>("rootOnly",
             "Scale only age of root node node.",
@@ -57,14 +58,25 @@ public class ScaleOperator extends TreeOperator {
             "Scaling is restricted to the range [1/scaleFactor, scaleFactor]",
             0.8);
 
+    public Input<Boolean> optimiseInput = new Input<>("optimise",
+            "Automatically adjust scaleFactor to achieve a good acceptance rate.",
+            true);
+
     private Tree tree;
-    private boolean rootOnly;
+    private boolean rootOnly, optimise;
+    private double scaleFactor;
+
+    private final NodeBuffer rootGroup = new NodeBuffer();
+    private final NodeBuffer logicalChildren = new NodeBuffer();
 
 
     @Override
     public void initAndValidate() {
         tree = treeInput.get();
         rootOnly = rootOnlyInput.get();
+        scaleFactor = Math.min(scaleFactorInput.get(), 1.0/scaleFactorInput.get());
+        optimise = optimiseInput.get();
+        index = LogicalNodeIndex.getIndex(tree);
     }
 
     @Override
@@ -74,7 +86,7 @@ public class ScaleOperator extends TreeOperator {
             return Double.NEGATIVE_INFINITY;
 
         // Choose scale factor:
-        double minf = Math.min(scaleFactorInput.get(), 1.0/scaleFactorInput.get());
+        double minf = scaleFactor;
         double maxf = 1.0/minf;
         double f = minf + (maxf - minf)* Randomizer.nextDouble();
 
@@ -84,25 +96,30 @@ public class ScaleOperator extends TreeOperator {
 
         // Scale tree
         if (rootOnly) {
-            List<Node> rootGroup = new ArrayList<>();
-            List<Node> logicalChildren = new ArrayList<>();
+            rootGroup.clear();
+            logicalChildren.clear();
             Pitchforks.getGroupAndLogicalChildren(tree.getRoot(), rootGroup, logicalChildren);
             rootGroup.add(tree.getRoot());
 
             double newHeight = f*tree.getRoot().getHeight();
 
             if (f<1.0) {
-                for (Node child : logicalChildren)
-                    if (newHeight < child.getHeight())
+                for (int i=0; i<logicalChildren.size(); i++)
+                    if (newHeight < logicalChildren.get(i).getHeight())
                         return Double.NEGATIVE_INFINITY;
             }
 
-            for (Node node : rootGroup)
+            for (int i=0; i<rootGroup.size(); i++) {
+                Node node = rootGroup.get(i);
                 node.setHeight(newHeight);
+                index.update(node);
+            }
 
             logHR += logf;
 
         } else {
+            index.invalidate();
+
             try {
                 tree.getRoot().scale(f);
             } catch (IllegalArgumentException ex) {
@@ -144,4 +161,25 @@ public class ScaleOperator extends TreeOperator {
         return logHR;
     }
 
+    @Override
+    public void optimize(double logAlpha) {
+        if (optimise)
+            setCoercableParameterValue(getOptimisedScaleFactor(scaleFactor, logAlpha));
+    }
+
+    @Override
+    public double getCoercableParameterValue() {
+        return scaleFactor;
+    }
+
+    @Override
+    public void setCoercableParameterValue(double value) {
+        scaleFactor = value;
+    }
+
+    @Override
+    public String getPerformanceSuggestion() {
+        return getScaleFactorSuggestion("scaleFactor", scaleFactor);
+    }
+
 }
@@ -19,17 +19,15 @@ package pitchfork.operators;
 
 import beast.base.core.Description;
 import beast.base.core.Input;
-import beast.base.evolution.operator.TreeOperator;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.util.Randomizer;
+import pitchfork.LogicalNodeIndex;
 import pitchfork.Pitchforks;
 
-import java.util.List;
-
 @Description("Implements a version of BEAST's subtree slide operator which " +
         "is applicable to trees with hard polytomies.")
-public class SubtreeSlideOperator extends TreeOperator {
+public class SubtreeSlideOperator extends PitchforkTreeOperator {
 
     public Input<Double> relSizeInput = new Input<>("relSize",
             "Size of slide window, relative to tree height.",
@@ -39,14 +37,21 @@ public class SubtreeSlideOperator extends TreeOperator {
             "Probability of attaching to the nearest coalescent node following slide.",
             0.1);
 
+    public Input<Boolean> optimiseInput = new Input<>("optimise",
+            "Automatically adjust relSize to achieve a good acceptance rate.",
+            true);
+
     Tree tree;
     double probCoalAttach, relSize;
+    boolean optimise;
 
     @Override
     public void initAndValidate() {
         tree = treeInput.get();
         probCoalAttach = probCoalAttachInput.get();
         relSize = relSizeInput.get();
+        optimise = optimiseInput.get();
+        index = LogicalNodeIndex.getIndex(tree);
     }
 
     @Override
@@ -58,15 +63,15 @@ public class SubtreeSlideOperator extends TreeOperator {
 
         // Select base node of edge to move:
 
-        List<Node> logicalNodes = Pitchforks.getTrueNodes(tree);
+        int nLogicalNodes = index.getTrueNodeCount();
         Node edgeBaseNode;
         do {
-            edgeBaseNode = logicalNodes.get(Randomizer.nextInt(logicalNodes.size()));
+            edgeBaseNode = index.getTrueNode(Randomizer.nextInt(nLogicalNodes));
         } while (edgeBaseNode.isRoot());
 
         // Forward HR contribution of edge node selection:
 
-        logHR -= Math.log(1.0/(logicalNodes.size()-1.0));
+        logHR -= Math.log(1.0/(nLogicalNodes-1.0));
 
         // Slide edge in randomly chosen direction:
 
@@ -79,7 +84,7 @@ public class SubtreeSlideOperator extends TreeOperator {
 
         // Reverse HR contribution of edge node selection:
 
-        logHR += Math.log(1.0/(Pitchforks.getTrueNodes(tree).size()-1.0));
+        logHR += Math.log(1.0/(index.getTrueNodeCount()-1.0));
 
         return logHR;
 
@@ -89,12 +94,33 @@ public class SubtreeSlideOperator extends TreeOperator {
         return 1.0/(relSize*tree.getRoot().getHeight());
     }
 
+    @Override
+    public void optimize(double logAlpha) {
+        if (optimise)
+            setCoercableParameterValue(getOptimisedSize(relSize, logAlpha));
+    }
+
+    @Override
+    public double getCoercableParameterValue() {
+        return relSize;
+    }
+
+    @Override
+    public void setCoercableParameterValue(double value) {
+        relSize = value;
+    }
+
+    @Override
+    public String getPerformanceSuggestion() {
+        return getSizeSuggestion("relSize", relSize);
+    }
+
     private double slideUp(Node edgeBaseNode) {
 
         Node edgeParentNode = edgeBaseNode.getParent();
         Node edgeSisterNode = getOtherChild(edgeParentNode, edgeBaseNode);
 
-        AttachmentPoint newAttachmentPoint = getOlderAttachmentPoint(Pitchforks.getLogicalNode(edgeParentNode));
+        AttachmentPoint newAttachmentPoint = getOlderAttachmentPoint(index.getLogicalNode(edgeParentNode));
 
         // Record old attachment point
 
@@ -103,9 +129,9 @@ public class SubtreeSlideOperator extends TreeOperator {
 
         AttachmentPoint oldAttachmentPoint = new AttachmentPoint();
         oldAttachmentPoint.attachmentHeight = edgeParentNode.getHeight();
-        Node edgeLogicalParentNode = Pitchforks.getLogicalNode(edgeParentNode);
+        Node edgeLogicalParentNode = index.getLogicalNode(edgeParentNode);
         if (Pitchforks.isPolytomy(edgeParentNode) && edgeLogicalParentNode != edgeParentNode)
-            oldAttachmentPoint.attachmentEdgeBase = Pitchforks.getLogicalNode(edgeParentNode);
+            oldAttachmentPoint.attachmentEdgeBase = edgeLogicalParentNode;
         else
             oldAttachmentPoint.attachmentEdgeBase = edgeSisterNode;
 
@@ -119,17 +145,27 @@ public class SubtreeSlideOperator extends TreeOperator {
             grandParent.addChild(edgeSisterNode);
             edgeParentNode.setParent(null);
 
+            Node newGrandParent = null;
             if (!newAttachmentPoint.attachmentEdgeBase.isRoot()) {
-                Node newGrandParent = newAttachmentPoint.attachmentEdgeBase.getParent();
+                newGrandParent = newAttachmentPoint.attachmentEdgeBase.getParent();
                 newGrandParent.removeChild(newAttachmentPoint.attachmentEdgeBase);
                 newGrandParent.addChild(edgeParentNode);
             }
             edgeParentNode.addChild(newAttachmentPoint.attachmentEdgeBase);
 
+            // Set the root before updating the index, as this may change
+            // node numbers.
             if (edgeParentNode.isRoot())
                 tree.setRoot(edgeParentNode);
+
+            index.update(grandParent);
+            index.update(edgeSisterNode);
+            if (newGrandParent != null)
+                index.update(newGrandParent);
+            index.update(newAttachmentPoint.attachmentEdgeBase);
         }
         edgeParentNode.setHeight(newAttachmentPoint.attachmentHeight);
+        index.update(edgeParentNode);
 
         // Probability of reverse move:
 
@@ -145,14 +181,14 @@ public class SubtreeSlideOperator extends TreeOperator {
         AttachmentPoint newAttachmentPoint;
         try {
             newAttachmentPoint = getYoungerAttachmentPoint(edgeBaseNode,
-                    Pitchforks.getLogicalNode(edgeParentNode));
+                    index.getLogicalNode(edgeParentNode));
         } catch (AttachmentException ex) {
             return Double.NEGATIVE_INFINITY;
         }
 
         AttachmentPoint oldAttachmentPoint = new AttachmentPoint();
         oldAttachmentPoint.attachmentHeight = edgeParentNode.getHeight();
-        oldAttachmentPoint.attachmentEdgeBase = Pitchforks.getLogicalNode(edgeSisterNode);
+        oldAttachmentPoint.attachmentEdgeBase = index.getLogicalNode(edgeSisterNode);
 
         // Topology modification
 
@@ -163,6 +199,8 @@ public class SubtreeSlideOperator extends TreeOperator {
                 edgeParentNode.removeChild(edgeSisterNode);
                 grandParent.addChild(edgeSisterNode);
                 edgeParentNode.setParent(null);
+
+                index.update(grandParent);
             } else {
                 edgeParentNode.removeChild(edgeSisterNode);
                 edgeSisterNode.setParent(null);
@@ -173,8 +211,14 @@ public class SubtreeSlideOperator extends TreeOperator {
             newGrandParent.addChild(edgeParentNode);
             edgeParentNode.addChild(newAttachmentPoint.attachmentEdgeBase);
 
+            // Set the root before updating the index, as this may change
+            // node numbers.
             if (edgeSisterNode.isRoot())
                 tree.setRoot(edgeSisterNode);
+
+            index.update(edgeSisterNode);
+            index.update(newGrandParent);
+            index.update(newAttachmentPoint.attachmentEdgeBase);
         } else {
             // If topology is unchanged, node below edge supporting original
             // attachment will be the original edge parent node:
@@ -182,6 +226,7 @@ public class SubtreeSlideOperator extends TreeOperator {
             oldAttachmentPoint.attachmentEdgeBase = edgeParentNode;
         }
         edgeParentNode.setHeight(newAttachmentPoint.attachmentHeight);
+        index.update(edgeParentNode);
 
         // Probability of reverse move
 
@@ -214,7 +259,7 @@ public class SubtreeSlideOperator extends TreeOperator {
 
         ap.attachmentEdgeBase = startNode;
         while(true) {
-            Node logicalParent = Pitchforks.getLogicalParent(ap.attachmentEdgeBase);
+            Node logicalParent = index.getLogicalParent(ap.attachmentEdgeBase);
 
             if (logicalParent != null) {
                 if (Randomizer.nextDouble() < probCoalAttach) {
@@ -251,7 +296,7 @@ public class SubtreeSlideOperator extends TreeOperator {
         Node currentEdgeBase = startNode;
         Node logicalParent;
         while(true) {
-            logicalParent = Pitchforks.getLogicalParent(currentEdgeBase);
+            logicalParent = index.getLogicalParent(currentEdgeBase);
 
             if (logicalParent != null) {
                 if (ap.attachmentHeight <= logicalParent.getHeight()) {
@@ -288,12 +333,22 @@ public class SubtreeSlideOperator extends TreeOperator {
 
         ap.attachmentEdgeBase = startNode;
         while(true) {
-            List<Node> logicalChildren = Pitchforks.getLogicalChildren(ap.attachmentEdgeBase);
-            if (ap.attachmentEdgeBase == startNode)
-                logicalChildren.remove(edgeBaseNode);
-
-            ap.attachmentEdgeBase = Pitchforks.randomChoice(logicalChildren);
-            ap.logProb += Math.log(1.0/logicalChildren.size());
+            Node currentNode = ap.attachmentEdgeBase;
+            int nLogicalChildren = index.getLogicalChildCount(currentNode);
+
+            if (currentNode == startNode) {
+                // Choose from the logical children other than edgeBaseNode,
+                // substituting the last child if edgeBaseNode is drawn.
+                nLogicalChildren -= 1;
+                ap.attachmentEdgeBase = index.getLogicalChild(currentNode,
+                        Randomizer.nextInt(nLogicalChildren));
+                if (ap.attachmentEdgeBase == edgeBaseNode)
+                    ap.attachmentEdgeBase = index.getLogicalChild(currentNode, nLogicalChildren);
+            } else {
+                ap.attachmentEdgeBase = index.getLogicalChild(currentNode,
+                        Randomizer.nextInt(nLogicalChildren));
+            }
+            ap.logProb += Math.log(1.0/nLogicalChildren);
 
             if (!ap.attachmentEdgeBase.isLeaf()) {
                 if (Randomizer.nextDouble() < probCoalAttach) {
@@ -353,14 +408,14 @@ public class SubtreeSlideOperator extends TreeOperator {
                         - lambda*currentEdgeBase.getLength();
             }
 
-            currentEdgeBase = Pitchforks.getLogicalParent(currentEdgeBase);
+            currentEdgeBase = index.getLogicalParent(currentEdgeBase);
 
-            List<Node> logicalChildren = Pitchforks.getLogicalChildren(currentEdgeBase);
+            int nLogicalChildren = index.getLogicalChildCount(currentEdgeBase);
 
             if (currentEdgeBase == startNode)
-                ap.logProb += Math.log(1.0 / (logicalChildren.size() - 1));
+                ap.logProb += Math.log(1.0 / (nLogicalChildren - 1));
             else
-                ap.logProb += Math.log(1.0 / logicalChildren.size());
+                ap.logProb += Math.log(1.0 / nLogicalChildren);
 
         } while (currentEdgeBase != startNode);
     }
@@ -19,19 +19,16 @@ package pitchfork.operators;
 
 import beast.base.core.Description;
 import beast.base.core.Input;
-import beast.base.evolution.operator.TreeOperator;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.util.Randomizer;
-
-import java.util.ArrayList;
-import java.util.List;
+import pitchfork.LogicalNodeIndex;
+import pitchfork.NodeBuffer;
 
 import static pitchfork.Pitchforks.getGroupAndLogicalChildren;
-import static pitchfork.Pitchforks.getTrueInternalNodes;
 
 @Description("Uniform node height operator compatible with trees having polytomies.")
-public class UniformOperator extends TreeOperator {
+public class UniformOperator extends PitchforkTreeOperator {
 
     public Input<Boolean> scaleRootInput = new Input<>(
             "scaleRoot",
@@ -43,16 +40,30 @@ public class UniformOperator extends TreeOperator {
             "Tuning parameter for scaling root.",
             0.8);
 
+    public Input<Boolean> optimiseInput = new Input<>("optimise",
+            "Automatically adjust scaleFactor to achieve a good acceptance rate.",
+            true);
+
     Tree tree;
 
-    boolean scaleRoot;
+    boolean scaleRoot, optimise;
     double scaleFactor;
+    boolean lastProposalScaledRoot;
+
+    /* Outcomes of root proposals, the only ones which depend on the
+       scale factor. */
+    int nRootAccepted, nRootRejected;
+
+    NodeBuffer nodesInLogicalGroup = new NodeBuffer();
+    NodeBuffer logicalChildren = new NodeBuffer();
 
     @Override
     public void initAndValidate() {
         tree = treeInput.get();
         scaleRoot = scaleRootInput.get();
-        scaleFactor = scaleFactorInput.get();
+        scaleFactor = Math.min(scaleFactorInput.get(), 1.0/scaleFactorInput.get());
+        optimise = optimiseInput.get();
+        index = LogicalNodeIndex.getIndex(tree);
     }
 
     @Override
@@ -60,26 +71,32 @@ public class UniformOperator extends TreeOperator {
 
         double logHR = 0.0;
 
-        List<Node> trueNodes = getTrueInternalNodes(tree);
+        lastProposalScaledRoot = false;
+
+        int nTrueNodes = index.getTrueInternalNodeCount();
 
-        if (trueNodes.size() == 1 && !scaleRoot)
+        if (nTrueNodes == 1 && !scaleRoot)
             return Double.NEGATIVE_INFINITY;
 
         Node logicalNode;
         do {
-            logicalNode = trueNodes.get(Randomizer.nextInt(trueNodes.size()));
+            logicalNode = index.getTrueInternalNode(Randomizer.nextInt(nTrueNodes));
         } while (!scaleRoot && logicalNode.isRoot());
 
 
-        List<Node> nodesInLogicalGroup = new ArrayList<>();
-        List<Node> logicalChildren = new ArrayList<>();
+        nodesInLogicalGroup.clear();
+        logicalChildren.clear();
         getGroupAndLogicalChildren(logicalNode, nodesInLogicalGroup, logicalChildren);
-        double minHeight = logicalChildren.stream().mapToDouble(Node::getHeight).max().getAsDouble();
+
+        double minHeight = Double.NEGATIVE_INFINITY;
+        for (int i=0; i<logicalChildren.size(); i++)
+            minHeight = Math.max(minHeight, logicalChildren.get(i).getHeight());
 
         double newHeight;
         if (logicalNode.isRoot()) {
+            lastProposalScaledRoot = true;
 
-            double minf = Math.min(scaleFactor, 1.0/scaleFactor);
+            double minf = scaleFactor;
             double maxf = 1.0/minf;
             double f = minf + Randomizer.nextDouble()*(maxf - minf);
 
@@ -98,9 +115,52 @@ public class UniformOperator extends TreeOperator {
         }
 
         logicalNode.setHeight(newHeight);
-        for (Node node : nodesInLogicalGroup)
-            node.setHeight(newHeight);
+        for (int i=0; i<nodesInLogicalGroup.size(); i++)
+            nodesInLogicalGroup.get(i).setHeight(newHeight);
+
+        index.update(logicalNode);
+        for (int i=0; i<nodesInLogicalGroup.size(); i++)
+            index.update(nodesInLogicalGroup.get(i));
 
         return logHR;
     }
+
+    @Override
+    public void accept() {
+        if (lastProposalScaledRoot)
+            nRootAccepted += 1;
+
+        super.accept();
+    }
+
+    @Override
+    public void reject(int reason) {
+        if (lastProposalScaledRoot)
+            nRootRejected += 1;
+
+        super.reject(reason);
+    }
+
+    @Override
+    public void optimize(double logAlpha) {
+        // Only root proposals depend on the scale factor.
+        if (optimise && lastProposalScaledRoot)
+            setCoercableParameterValue(getOptimisedScaleFactor(scaleFactor, logAlpha));
+    }
+
+    @Override
+    public double getCoercableParameterValue() {
+        return scaleFactor;
+    }
+
+    @Override
+    public void setCoercableParameterValue(double value) {
+        scaleFactor = value;
+    }
+
+    @Override
+    public String getPerformanceSuggestion() {
+        return getScaleFactorSuggestion("scaleFactor", scaleFactor,
+                nRootAccepted, nRootRejected);
+    }
 }
@@ -70,9 +70,9 @@ public class CollapsedPitchforkTree extends Tree {
             newRoot.setNr(nextNodeNr++);
         }
 
-        List<Node> logicalChildren = Pitchforks.getLogicalChildren(root);
-
-        for (Node child : logicalChildren)
+        for (Node child = Pitchforks.getFirstLogicalChild(root);
+             child != null;
+             child = Pitchforks.getNextLogicalChild(root, child))
             newRoot.addChild(getCollapsedTree(child));
 
         return newRoot;
@@ -26,8 +26,6 @@ import beast.base.inference.CalculationNode;
 import pitchfork.Pitchforks;
 
 import java.io.PrintStream;
-import java.util.ArrayList;
-import java.util.List;
 
 public class PolytomyStatsLogger extends CalculationNode implements Loggable, Function {
 
@@ -79,14 +77,12 @@ public class PolytomyStatsLogger extends CalculationNode implements Loggable, Fu
     private int getPolytomyCount() {
         int count = 0;
 
-        List<Node> trueNodes = new ArrayList<>();
-        for (Node node : tree.getNodesAsArray())
-            if (node.isRoot() || node.getParent().getHeight()>node.getHeight())
-                trueNodes.add(node);
+        for (Node node : tree.getNodesAsArray()) {
+            if (!(node.isRoot() || node.getParent().getHeight()>node.getHeight()))
+                continue;
 
-        for (Node node : trueNodes) {
-            if (!node.isLeaf() && (node.getChildren().get(0).getHeight()==node.getHeight()
-                    || node.getChildren().get(1).getHeight()==node.getHeight()))
+            if (!node.isLeaf() && (node.getChild(0).getHeight()==node.getHeight()
+                    || node.getChild(1).getHeight()==node.getHeight()))
                 count += 1;
         }
 
@@ -99,10 +95,12 @@ public class PolytomyStatsLogger extends CalculationNode implements Loggable, Fu
             nodeOrderHist[i] = 0;
 
         // Compute histogram
-        List<Node> trueNodes = Pitchforks.getTrueInternalNodes(tree);
+        for (int nodeNr=tree.getLeafNodeCount(); nodeNr<tree.getNodeCount(); nodeNr++) {
+            Node node = tree.getNode(nodeNr);
+            if (!Pitchforks.isLogicalNode(node))
+                continue;
 
-        for (Node node : trueNodes) {
-            int order = Pitchforks.getLogicalChildren(node).size();
+            int order = Pitchforks.getLogicalChildCount(node);
             if (order <= maxOrder)
                 nodeOrderHist[order-2] += 1;
         }
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2019. Tim Vaughan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package pitchfork;
+
+import beast.base.evolution.operator.ScaleOperator;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.util.Randomizer;
+import org.junit.Assert;
+import beast.base.inference.Operator;
+import org.junit.Test;
+import pitchfork.operators.ExpandCollapseOperator;
+import pitchfork.operators.SPROperator;
+import pitchfork.operators.SubtreeSlideOperator;
+
+public class LogicalNodeIndexTest extends PitchforkTestClass {
+
+    private void assertConsistent(LogicalNodeIndex index) {
+        Assert.assertEquals(Pitchforks.getTrueNodes(tree).size(), index.getTrueNodeCount());
+        Assert.assertEquals(Pitchforks.getTrueInternalNodes(tree).size(),
+                index.getTrueInternalNodeCount());
+
+        for (int i=0; i<index.getTrueNodeCount(); i++)
+            Assert.assertTrue(Pitchforks.isLogicalNode(index.getTrueNode(i)));
+
+        for (Node node : tree.getNodesAsArray()) {
+            Assert.assertSame(Pitchforks.getLogicalNode(node), index.getLogicalNode(node));
+
+            if (Pitchforks.isLogicalNode(node)) {
+                Assert.assertEquals(Pitchforks.getLogicalChildren(node).size(),
+                        index.getLogicalChildCount(node));
+
+                for (int i=0; i<index.getLogicalChildCount(node); i++)
+                    Assert.assertTrue(Pitchforks.getLogicalChildren(node)
+                            .contains(index.getLogicalChild(node, i)));
+            }
+        }
+
+        int nExpandable = 0;
+        for (Node trueNode : Pitchforks.getTrueNodes(tree)) {
+            if (!trueNode.isRoot() && Pitchforks.isPolytomy(trueNode.getParent()))
+                nExpandable += 1;
+        }
+        Assert.assertEquals(nExpandable, index.getExpandableEdgeCount());
+
+        for (int i=0; i<index.getExpandableEdgeCount(); i++)
+            Assert.assertTrue(Pitchforks.isPolytomy(index.getExpandableEdge(i).getParent()));
+
+        int nCollapsable = 0;
+        for (Node trueNode : Pitchforks.getTrueNodes(tree)) {
+            if (trueNode.isRoot() || Pitchforks.isPolytomy(trueNode.getParent()))
+                continue;
+
+            Node sister = getSister(trueNode);
+            if (!sister.isLeaf() && sister.getHeight() >= trueNode.getHeight())
+                nCollapsable += 1;
+        }
+        Assert.assertEquals(nCollapsable, index.getCollapsableEdgeCount());
+
+        for (int i=0; i<index.getCollapsableEdgeCount(); i++) {
+            Node edgeNode = index.getCollapsableEdge(i);
+            Assert.assertFalse(Pitchforks.isPolytomy(edgeNode.getParent()));
+            Assert.assertTrue(getSister(edgeNode).getHeight() >= edgeNode.getHeight());
+        }
+
+        for (Node node : tree.getNodesAsArray()) {
+            double minHeight = node.getHeight();
+
+            int count = 0;
+            for (Node trueNode : Pitchforks.getTrueNodes(tree)) {
+                if (!trueNode.isRoot() && trueNode.getParent().getHeight() > minHeight)
+                    count += 1;
+            }
+            Assert.assertEquals(count, index.getEdgeCountAbove(minHeight));
+
+            for (int i=0; i<count; i++) {
+                Node edgeNode = index.getEdgeAbove(minHeight, i);
+                Assert.assertTrue(edgeNode.getParent().getHeight() > minHeight);
+
+                if (i > 0)
+                    Assert.assertTrue(edgeNode.getParent().getHeight()
+                            >= index.getEdgeAbove(minHeight, i-1).getParent().getHeight());
+            }
+        }
+    }
+
+    private Node getSister(Node node) {
+        Node parent = node.getParent();
+        return parent.getChild(0) == node ? parent.getChild(1) : parent.getChild(0);
+    }
+
+    @Test
+    public void testIndex() {
+        LogicalNodeIndex index = new LogicalNodeIndex(tree);
+
+        Assert.assertEquals(6, index.getTrueNodeCount());
+        Assert.assertEquals(2, index.getTrueInternalNodeCount());
+        Assert.assertEquals(2, index.getLogicalChildCount(tree.getRoot()));
+
+        assertConsistent(index);
+    }
+
+    @Test
+    public void testUpdate() {
+        LogicalNodeIndex index = new LogicalNodeIndex(tree);
+        index.getTrueNodeCount();
+
+        // Expand the (A,B,C) polytomy by lowering the youngest node in it.
+        Node node = null;
+        for (Node internalNode : tree.getInternalNodes()) {
+            if (!Pitchforks.isLogicalNode(internalNode))
+                node = internalNode;
+        }
+        double oldHeight = node.getHeight();
+
+        node.setHeight(0.25);
+        index.update(node);
+
+        Assert.assertEquals(3, index.getTrueInternalNodeCount());
+        assertConsistent(index);
+
+        // Undo the change, as would happen on rejection.
+        index.reject();
+        node.setHeight(oldHeight);
+
+        Assert.assertEquals(2, index.getTrueInternalNodeCount());
+        assertConsistent(index);
+
+        // Changes made without update() are found at the next proposal.
+        node.setHeight(0.25);
+        index.beginProposal();
+
+        Assert.assertEquals(3, index.getTrueInternalNodeCount());
+        assertConsistent(index);
+    }
+
+    @Test
+    public void testUnreportedRestore() {
+        LogicalNodeIndex index = LogicalNodeIndex.getIndex(tree);
+
+        SPROperator sprOp = new SPROperator();
+        sprOp.initByName("tree", tree, "weight", 1.0);
+
+        // Before burn-in, MCMC restores the tree after a rejected proposal
+        // without calling the operator's accept() or reject().
+        Randomizer.setSeed(1);
+        for (int i=0; i<100; i++) {
+            tree.store();
+            double logHR = sprOp.proposal(null);
+            assertConsistent(index);
+
+            if (logHR == Double.NEGATIVE_INFINITY || Randomizer.nextBoolean())
+                tree.restore();
+            else
+                tree.setEverythingDirty(false);
+
+            // The next proposal finds the tree as restored.
+            index.beginProposal();
+            assertConsistent(index);
+        }
+    }
+
+    @Test
+    public void testCoreScaleOperator() {
+        LogicalNodeIndex index = LogicalNodeIndex.getIndex(tree);
+
+        SPROperator sprOp = new SPROperator();
+        sprOp.initByName("tree", tree, "weight", 1.0);
+
+        // Core tree scalers do not inform the index of their changes,
+        // which are found at the start of the next pitchfork proposal.
+        ScaleOperator scaleOp = new ScaleOperator();
+        scaleOp.initByName("tree", tree, "scaleFactor", 0.5, "weight", 1.0);
+
+        Randomizer.setSeed(1);
+        for (int i=0; i<100; i++) {
+            Operator operator = i % 2 == 0 ? sprOp : scaleOp;
+
+            tree.store();
+            double logHR = operator.proposal(null);
+            if (operator == sprOp)
+                assertConsistent(index);
+
+            if (logHR == Double.NEGATIVE_INFINITY || Randomizer.nextBoolean()) {
+                operator.reject(0);
+                tree.restore();
+            } else {
+                operator.accept();
+                tree.setEverythingDirty(false);
+            }
+
+            index.beginProposal();
+            assertConsistent(index);
+        }
+    }
+
+    @Test
+    public void testCoreScaleOperatorWithTipDates() {
+        // The leaf A is older than the children of its sister, so scaling
+        // the internal node heights can make A older than its sister and
+        // the edge above A no longer collapsable.
+        tree = new TreeParser("((A:0.5,(B:0.5,C:0.5):0.4):0.5,D:1.5);",
+                false, false, true, 0);
+
+        LogicalNodeIndex index = LogicalNodeIndex.getIndex(tree);
+
+        ExpandCollapseOperator ecOp = new ExpandCollapseOperator();
+        ecOp.initByName("tree", tree, "weight", 1.0);
+
+        ScaleOperator scaleOp = new ScaleOperator();
+        scaleOp.initByName("tree", tree, "scaleFactor", 0.5, "weight", 1.0);
+
+        Randomizer.setSeed(1);
+        for (int i=0; i<100; i++) {
+            Operator operator = i % 2 == 0 ? ecOp : scaleOp;
+
+            tree.store();
+            double logHR = operator.proposal(null);
+
+            if (operator == ecOp)
+                assertConsistent(index);
+
+            if (logHR == Double.NEGATIVE_INFINITY || Randomizer.nextBoolean()) {
+                operator.reject(0);
+                tree.restore();
+            } else {
+                operator.accept();
+                tree.setEverythingDirty(false);
+            }
+
+            index.beginProposal();
+            assertConsistent(index);
+        }
+    }
+
+    @Test
+    public void testRootRenumbering() {
+        LogicalNodeIndex index = LogicalNodeIndex.getIndex(tree);
+
+        // Moving the root changes node numbers, as Tree.setRoot() gives
+        // the new root the last number.
+        SubtreeSlideOperator stsOp = new SubtreeSlideOperator();
+        stsOp.initByName("tree", tree,
+                "relSize", 0.5,
+                "probCoalAttach", 0.5,
+                "weight", 1.0);
+
+        Randomizer.setSeed(1);
+        int nRootChanges = 0;
+        for (int i=0; i<200; i++) {
+            Node oldRoot = tree.getRoot();
+
+            tree.store();
+            double logHR = stsOp.proposal(null);
+
+            if (logHR > Double.NEGATIVE_INFINITY) {
+                assertConsistent(index);
+
+                if (tree.getRoot() != oldRoot)
+                    nRootChanges += 1;
+            }
+
+            if (logHR == Double.NEGATIVE_INFINITY || Randomizer.nextBoolean()) {
+                stsOp.reject(0);
+                tree.restore();
+            } else {
+                stsOp.accept();
+                tree.setEverythingDirty(false);
+            }
+
+            assertConsistent(index);
+        }
+
+        Assert.assertTrue(nRootChanges > 0);
+    }
+}
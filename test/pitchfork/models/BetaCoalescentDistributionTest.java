@@ -17,7 +17,10 @@
 
 package pitchfork.models;
 
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.TreeParser;
 import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
 import junit.framework.Assert;
 import pitchfork.PitchforkTestClass;
 import org.junit.Test;
@@ -44,4 +47,127 @@ public class BetaCoalescentDistributionTest extends PitchforkTestClass {
         // TODO check this is actually right!
         Assert.assertEquals(-4.49175946928192, density, 1e-10);
     }
+
+    @Test
+    public void testIncrementalUpdate() {
+        TreeParser bigTree = new TreeParser(
+                "(((A:1.0,B:1.0,C:1.0):0.5,(D:0.7,E:0.3):0.3):1.0," +
+                        "((F:0.4,G:0.4):1.2,(H:0.2,I:0.3,J:0.8):0.5):0.9);",
+                false, false, true,0);
+
+        BetaCoalescentModel bcModel = new BetaCoalescentModel();
+        bcModel.initByName("alpha", new RealParameter("1.5"),
+                "tree", bigTree);
+
+        CollapsedTreeIntervals treeIntervals = new CollapsedTreeIntervals();
+        treeIntervals.initByName("tree", bigTree);
+
+        BetaCoalescentDistribution distribution = new BetaCoalescentDistribution();
+        distribution.initByName("model", bcModel,
+                "collapsedTreeIntervals", treeIntervals,
+                "populationFunction", getConstantPopulation(2.0));
+
+        double origDensity = distribution.calculateLogP();
+
+        treeIntervals.store();
+        distribution.store();
+
+        // Move parent of F and G (height 0.4) below tip J (height 0.3)
+        Node node = null;
+        for (Node leaf : bigTree.getExternalNodes()) {
+            if (leaf.getID().equals("F"))
+                node = leaf.getParent();
+        }
+        node.setHeight(0.15);
+        treeIntervals.requiresRecalculation();
+
+        CollapsedTreeIntervals freshIntervals = new CollapsedTreeIntervals();
+        freshIntervals.initByName("tree", bigTree);
+
+        BetaCoalescentDistribution freshDistribution = new BetaCoalescentDistribution();
+        freshDistribution.initByName("model", bcModel,
+                "collapsedTreeIntervals", freshIntervals,
+                "populationFunction", getConstantPopulation(2.0));
+
+        Assert.assertEquals(freshDistribution.calculateLogP(),
+                distribution.calculateLogP(), 1e-10);
+
+        node.setHeight(0.4);
+        treeIntervals.restore();
+        distribution.restore();
+
+        Assert.assertEquals(origDensity, distribution.calculateLogP(), 1e-10);
+    }
+
+    @Test
+    public void testRejectedShifts() {
+        TreeParser bigTree = new TreeParser(
+                "(((A:1.0,B:1.0,C:1.0):0.5,(D:0.7,E:0.3):0.3):1.0," +
+                        "((F:0.4,G:0.4):1.2,(H:0.2,I:0.3,J:0.8):0.5):0.9);",
+                false, false, true,0);
+
+        BetaCoalescentModel bcModel = new BetaCoalescentModel();
+        bcModel.initByName("alpha", new RealParameter("1.5"),
+                "tree", bigTree);
+
+        CollapsedTreeIntervals treeIntervals = new CollapsedTreeIntervals();
+        treeIntervals.initByName("tree", bigTree);
+
+        BetaCoalescentDistribution distribution = new BetaCoalescentDistribution();
+        distribution.initByName("model", bcModel,
+                "collapsedTreeIntervals", treeIntervals,
+                "populationFunction", getConstantPopulation(2.0));
+
+        distribution.calculateLogP();
+        bigTree.setEverythingDirty(false);
+
+        // Proposals move a non-root internal node, often onto its oldest
+        // child when this is not a leaf, removing an interval and shifting
+        // all later ones.  Around half are rejected, so that the stored
+        // contributions must remain correct across these shifts.
+        Randomizer.setSeed(1);
+        for (int step=0; step<200; step++) {
+            Node node = bigTree.getNode(bigTree.getLeafNodeCount()
+                    + Randomizer.nextInt(bigTree.getInternalNodeCount()));
+            if (node.isRoot())
+                continue;
+
+            Node oldestChild = node.getChild(0);
+            for (Node child : node.getChildren()) {
+                if (child.getHeight() > oldestChild.getHeight())
+                    oldestChild = child;
+            }
+
+            double oldHeight = node.getHeight();
+            double newHeight = oldestChild.getHeight();
+            if (oldestChild.isLeaf() || Randomizer.nextBoolean())
+                newHeight += Randomizer.nextDouble()
+                        *(node.getParent().getHeight() - newHeight);
+
+            treeIntervals.store();
+            distribution.store();
+
+            node.setHeight(newHeight);
+            treeIntervals.requiresRecalculation();
+
+            CollapsedTreeIntervals freshIntervals = new CollapsedTreeIntervals();
+            freshIntervals.initByName("tree", bigTree);
+
+            BetaCoalescentDistribution freshDistribution = new BetaCoalescentDistribution();
+            freshDistribution.initByName("model", bcModel,
+                    "collapsedTreeIntervals", freshIntervals,
+                    "populationFunction", getConstantPopulation(2.0));
+
+            Assert.assertEquals(freshDistribution.calculateLogP(),
+                    distribution.calculateLogP(), 1e-10);
+
+            if (Randomizer.nextBoolean()) {
+                node.setHeight(oldHeight);
+                treeIntervals.restore();
+                distribution.restore();
+            }
+
+            bigTree.setEverythingDirty(false);
+        }
+    }
 }
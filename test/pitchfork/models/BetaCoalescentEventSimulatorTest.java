@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2019. Tim Vaughan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pitchfork.models;
+
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import org.junit.Assert;
+import org.junit.Test;
+import pitchfork.PitchforkTestClass;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class BetaCoalescentEventSimulatorTest extends PitchforkTestClass {
+
+    private static BetaCoalescentModel getModel(int nLeaves, double alpha) {
+        List<Taxon> taxonList = new ArrayList<>();
+        for (int i=1; i<=nLeaves; i++)
+            taxonList.add(new Taxon("t" + i));
+
+        BetaCoalescentModel model = new BetaCoalescentModel();
+        model.initByName("alpha", new RealParameter(String.valueOf(alpha)),
+                "taxonSet", new TaxonSet(taxonList));
+
+        return model;
+    }
+
+    @Test
+    public void testEventSequence() {
+        Randomizer.setSeed(1);
+
+        double[] sampleTimes = {0.0, 0.0, 0.0, 0.2, 0.2, 0.5, 1.0, 0.0, 0.1, 0.3};
+        BetaCoalescentEventSimulator simulator = new BetaCoalescentEventSimulator(
+                getModel(sampleTimes.length, 1.2), sampleTimes);
+
+        for (int sim=0; sim<1000; sim++) {
+            int eventCount = simulator.simulate();
+
+            int merged = 0;
+            for (int i=0; i<eventCount; i++) {
+                int k = simulator.getMergerSize(i);
+                int n = simulator.getLineageCount(i);
+
+                Assert.assertTrue(k >= 2 && k <= n);
+
+                if (i>0)
+                    Assert.assertTrue(simulator.getEventTime(i) > simulator.getEventTime(i-1));
+
+                // Lineages present are those sampled before the event, less
+                // those removed by earlier mergers.
+                int sampled = 0;
+                for (double sampleTime : sampleTimes)
+                    if (sampleTime < simulator.getEventTime(i))
+                        sampled += 1;
+
+                Assert.assertEquals(sampled - merged, n);
+                merged += k - 1;
+            }
+
+            Assert.assertEquals(sampleTimes.length - 1, merged);
+        }
+    }
+
+    @Test
+    public void testKingmanLimitTMRCA() {
+        Randomizer.setSeed(2);
+
+        int nLeaves = 10;
+        BetaCoalescentEventSimulator simulator = new BetaCoalescentEventSimulator(
+                getModel(nLeaves, 1.999999), new double[nLeaves]);
+
+        int nSims = 100000;
+        double meanTMRCA = 0.0;
+        for (int sim=0; sim<nSims; sim++) {
+            int eventCount = simulator.simulate();
+            meanTMRCA += simulator.getEventTime(eventCount-1);
+        }
+        meanTMRCA /= nSims;
+
+        double expectedTMRCA = 2.0*(1.0 - 1.0/nLeaves);
+        Assert.assertEquals(expectedTMRCA, meanTMRCA, expectedTMRCA*1e-2);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2019. Tim Vaughan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pitchfork.models;
+
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Binomial;
+import beast.base.util.Randomizer;
+import org.apache.commons.math.special.Beta;
+import org.junit.Assert;
+import org.junit.Test;
+import pitchfork.PitchforkTestClass;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class BetaCoalescentModelTest extends PitchforkTestClass {
+
+    private static TaxonSet getTaxonSet(int nLeaves) {
+        List<Taxon> taxonList = new ArrayList<>();
+        for (int i=1; i<=nLeaves; i++)
+            taxonList.add(new Taxon("t" + i));
+
+        return new TaxonSet(taxonList);
+    }
+
+    private static double getExpectedLogLambda(int n, int k, double alpha) {
+        return Beta.logBeta(k-alpha, n-k+alpha) - Beta.logBeta(2-alpha, alpha);
+    }
+
+    private static double getExpectedTotalCoalRate(int n, double alpha) {
+        double rate = 0.0;
+        for (int k=2; k<=n; k++)
+            rate += Math.exp(getExpectedLogLambda(n, k, alpha) + Binomial.logChoose(n, k));
+
+        return rate;
+    }
+
+    @Test
+    public void testRates() {
+        double alpha = 1.5;
+
+        BetaCoalescentModel model = new BetaCoalescentModel();
+        model.initByName("alpha", new RealParameter(String.valueOf(alpha)),
+                "taxonSet", getTaxonSet(50));
+
+        for (int n=2; n<=50; n++) {
+            for (int k=2; k<=n; k++)
+                Assert.assertEquals(getExpectedLogLambda(n, k, alpha),
+                        model.getLogLambda(n, k), 1e-10);
+
+            double expectedRate = getExpectedTotalCoalRate(n, alpha);
+            Assert.assertEquals(expectedRate, model.getTotalCoalRate(n), expectedRate*1e-10);
+        }
+    }
+
+    @Test
+    public void testLimitedTableSize() {
+        double alpha = 1.2;
+
+        BetaCoalescentModel model = new BetaCoalescentModel();
+        model.initByName("alpha", new RealParameter(String.valueOf(alpha)),
+                "taxonSet", getTaxonSet(50),
+                "maxTableEntries", 100);
+
+        // Visit rows repeatedly in an order which forces rows to be
+        // discarded and recomputed.
+        for (int rep=0; rep<3; rep++) {
+            for (int n=50; n>=2; n -= 7) {
+                double expectedRate = getExpectedTotalCoalRate(n, alpha);
+                Assert.assertEquals(expectedRate, model.getTotalCoalRate(n), expectedRate*1e-10);
+                Assert.assertEquals(getExpectedLogLambda(n, n, alpha),
+                        model.getLogLambda(n, n), 1e-10);
+            }
+        }
+    }
+
+    @Test
+    public void testStoreRestore() {
+        RealParameter alpha = new RealParameter("1.5");
+
+        BetaCoalescentModel model = new BetaCoalescentModel();
+        model.initByName("alpha", alpha,
+                "taxonSet", getTaxonSet(20));
+
+        double origRate = model.getTotalCoalRate(20);
+
+        model.store();
+        alpha.setValue(1.2);
+        model.requiresRecalculation();
+        Assert.assertEquals(getExpectedTotalCoalRate(20, 1.2),
+                model.getTotalCoalRate(20), 1e-10);
+
+        model.restore();
+        alpha.setValue(1.5);
+        Assert.assertEquals(origRate, model.getTotalCoalRate(20), 0.0);
+    }
+
+    @Test
+    public void testAlphaCache() {
+        RealParameter alpha = new RealParameter("1.5");
+
+        BetaCoalescentModel model = new BetaCoalescentModel();
+        model.initByName("alpha", alpha,
+                "taxonSet", getTaxonSet(20),
+                "alphaCacheSize", 1);
+
+        for (double alphaValue : new double[] {1.5, 1.2, 1.8, 1.2, 1.5, 1.8}) {
+            alpha.setValue(alphaValue);
+            model.requiresRecalculation();
+
+            Assert.assertEquals(getExpectedTotalCoalRate(20, alphaValue),
+                    model.getTotalCoalRate(20), 1e-10);
+        }
+    }
+
+    @Test
+    public void testMergerSizeSampler() {
+        Randomizer.setSeed(1);
+
+        double alpha = 1.3;
+        int n = 10;
+
+        BetaCoalescentModel model = new BetaCoalescentModel();
+        model.initByName("alpha", new RealParameter(String.valueOf(alpha)),
+                "taxonSet", getTaxonSet(n));
+
+        int nSamples = 1000000;
+        int[] counts = new int[n+1];
+        for (int i=0; i<nSamples; i++)
+            counts[model.sampleMergerSize(n)] += 1;
+
+        double totalRate = getExpectedTotalCoalRate(n, alpha);
+        for (int k=2; k<=n; k++) {
+            double expectedProb = Math.exp(getExpectedLogLambda(n, k, alpha)
+                    + Binomial.logChoose(n, k))/totalRate;
+            Assert.assertEquals(expectedProb, counts[k]/(double)nSamples, 2e-3);
+        }
+    }
+}
@@ -18,6 +18,9 @@
 package pitchfork.models;
 
 import beast.base.evolution.tree.IntervalType;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
 import pitchfork.PitchforkTestClass;
 import org.junit.Assert;
 import org.junit.Test;
@@ -39,4 +42,85 @@ public class CollapsedTreeIntervalsTest extends PitchforkTestClass {
         Assert.assertEquals(treeIntervals.getInterval(1), 0.2, 1e-14);
         Assert.assertEquals(treeIntervals.getInterval(2), 0.5, 1e-14);
     }
+
+    @Test
+    public void testIncrementalUpdate() {
+        TreeParser bigTree = new TreeParser(
+                "(((A:1.0,B:1.0,C:1.0):0.5,(D:0.7,E:0.2):0.3):1.0," +
+                        "((F:0.4,G:0.4):1.2,(H:0.1,I:0.3,J:0.8):0.5):0.9);",
+                false, false, true,0);
+
+        CollapsedTreeIntervals treeIntervals = new CollapsedTreeIntervals();
+        treeIntervals.initByName("tree", bigTree);
+        treeIntervals.getIntervalCount();
+
+        // Move parent of F and G (height 0.4) below tip J (height 0.3)
+        Node node = null;
+        for (Node leaf : bigTree.getExternalNodes()) {
+            if (leaf.getID().equals("F"))
+                node = leaf.getParent();
+        }
+        node.setHeight(0.15);
+        treeIntervals.requiresRecalculation();
+
+        CollapsedTreeIntervals freshIntervals = new CollapsedTreeIntervals();
+        freshIntervals.initByName("tree", bigTree);
+
+        Assert.assertEquals(freshIntervals.getIntervalCount(), treeIntervals.getIntervalCount());
+        for (int i=0; i<freshIntervals.getIntervalCount(); i++) {
+            Assert.assertEquals(freshIntervals.getInterval(i), treeIntervals.getInterval(i), 1e-14);
+            Assert.assertEquals(freshIntervals.getLineageCount(i), treeIntervals.getLineageCount(i));
+        }
+    }
+
+    @Test
+    public void testUnexaminedChange() {
+        TreeParser bigTree = new TreeParser(
+                "(((A:1.0,B:1.0,C:1.0):0.5,(D:0.7,E:0.2):0.3):1.0," +
+                        "((F:0.4,G:0.4):1.2,(H:0.1,I:0.3,J:0.8):0.5):0.9);",
+                false, false, true,0);
+
+        CollapsedTreeIntervals treeIntervals = new CollapsedTreeIntervals();
+        treeIntervals.initByName("tree", bigTree);
+        treeIntervals.getIntervalCount();
+        bigTree.setEverythingDirty(false);
+
+        Node nodeFG = null, nodeDE = null;
+        for (Node leaf : bigTree.getExternalNodes()) {
+            if (leaf.getID().equals("F"))
+                nodeFG = leaf.getParent();
+            if (leaf.getID().equals("D"))
+                nodeDE = leaf.getParent();
+        }
+
+        // Accept a change without the intervals being examined, so
+        // that its dirty flags are cleared before the next step.
+        treeIntervals.store();
+        nodeFG.setHeight(0.15);
+        treeIntervals.requiresRecalculation();
+        bigTree.setEverythingDirty(false);
+
+        // Reject a second change.
+        double oldHeight = nodeDE.getHeight();
+        treeIntervals.store();
+        nodeDE.setHeight(0.25);
+        treeIntervals.requiresRecalculation();
+        assertMatchesFresh(bigTree, treeIntervals);
+
+        nodeDE.setHeight(oldHeight);
+        treeIntervals.restore();
+        bigTree.setEverythingDirty(false);
+        assertMatchesFresh(bigTree, treeIntervals);
+    }
+
+    private void assertMatchesFresh(Tree tree, CollapsedTreeIntervals treeIntervals) {
+        CollapsedTreeIntervals freshIntervals = new CollapsedTreeIntervals();
+        freshIntervals.initByName("tree", tree);
+
+        Assert.assertEquals(freshIntervals.getIntervalCount(), treeIntervals.getIntervalCount());
+        for (int i=0; i<freshIntervals.getIntervalCount(); i++) {
+            Assert.assertEquals(freshIntervals.getInterval(i), treeIntervals.getInterval(i), 1e-14);
+            Assert.assertEquals(freshIntervals.getLineageCount(i), treeIntervals.getLineageCount(i));
+        }
+    }
 }
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2019. Tim Vaughan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pitchfork.models;
+
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.TraitSet;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import org.junit.Assert;
+import org.junit.Test;
+import pitchfork.PitchforkTestClass;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ExpectedSiteFrequencySpectrumTest extends PitchforkTestClass {
+
+    private static TaxonSet getTaxonSet(int nLeaves) {
+        List<Taxon> taxonList = new ArrayList<>();
+        for (int i=1; i<=nLeaves; i++)
+            taxonList.add(new Taxon("t" + i));
+
+        return new TaxonSet(taxonList);
+    }
+
+    private static BetaCoalescentModel getModel(TaxonSet taxonSet, double alpha) {
+        BetaCoalescentModel model = new BetaCoalescentModel();
+        model.initByName("alpha", new RealParameter(String.valueOf(alpha)),
+                "taxonSet", taxonSet);
+
+        return model;
+    }
+
+    @Test
+    public void testKingmanLimit() {
+        ExpectedSiteFrequencySpectrum sfs = new ExpectedSiteFrequencySpectrum(
+                getModel(getTaxonSet(30), 1.999999));
+
+        double[][] spectra = sfs.getExpectedSFS(new int[] {30, 10});
+
+        for (double[] spectrum : spectra) {
+            for (int b=1; b<spectrum.length; b++)
+                Assert.assertEquals(2.0/b, spectrum[b], 1e-4);
+        }
+    }
+
+    @Test
+    public void testMemoisation() {
+        TaxonSet taxonSet = getTaxonSet(40);
+
+        ExpectedSiteFrequencySpectrum sfs = new ExpectedSiteFrequencySpectrum(
+                getModel(taxonSet, 1.4));
+        sfs.getExpectedSFS(15);
+        double[] spectrum = sfs.getExpectedSFS(40);
+
+        double[] directSpectrum = new ExpectedSiteFrequencySpectrum(
+                getModel(taxonSet, 1.4)).getExpectedSFS(40);
+
+        Assert.assertArrayEquals(directSpectrum, spectrum, 1e-12);
+    }
+
+    @Test
+    public void testSimulation() {
+        Randomizer.setSeed(1);
+
+        int nLeaves = 6;
+        double alpha = 1.3;
+
+        TaxonSet taxonSet = getTaxonSet(nLeaves);
+        BetaCoalescentModel model = getModel(taxonSet, alpha);
+
+        double[] spectrum = new ExpectedSiteFrequencySpectrum(model).getExpectedSFS(nLeaves);
+
+        StringBuilder traitValueBuilder = new StringBuilder();
+        for (int i=1; i<=nLeaves; i++) {
+            if (i>1)
+                traitValueBuilder.append(",");
+
+            traitValueBuilder.append("t").append(i).append("=0.0");
+        }
+
+        TraitSet dateTrait = new TraitSet();
+        dateTrait.initByName("traitname", "date-backward",
+                "taxa", taxonSet,
+                "value", traitValueBuilder.toString());
+
+        SimulatedBetaCoalescentTree tree = new SimulatedBetaCoalescentTree();
+        tree.initByName(
+                "model", model,
+                "populationFunction", getConstantPopulation(1.0),
+                "trait", dateTrait);
+
+        int nSims = 100000;
+        double[] simSpectrum = new double[nLeaves];
+        for (int i=0; i<nSims; i++) {
+            if (i>0)
+                tree.initAndValidate();
+
+            for (Node node : tree.getNodesAsArray()) {
+                if (!node.isRoot())
+                    simSpectrum[node.getLeafNodeCount()] += node.getLength()/nSims;
+            }
+        }
+
+        for (int b=1; b<nLeaves; b++)
+            Assert.assertEquals(spectrum[b], simSpectrum[b], spectrum[b]*2e-2);
+    }
+}
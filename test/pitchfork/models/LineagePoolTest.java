@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2019. Tim Vaughan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package pitchfork.models;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+public class LineagePoolTest {
+
+    @Test
+    public void testRemoveRandom() {
+        RandomSource random = RandomSource.of(new SplittableRandom(1));
+
+        for (int rep=0; rep<100; rep++) {
+            LineagePool pool = new LineagePool(10);
+            for (int i=0; i<10; i++)
+                pool.add(100 + i);
+
+            int k = 1 + rep % 10;
+            int[] removed = new int[10];
+            pool.removeRandom(k, removed, random);
+
+            // Removed lineages must be distinct members of the pool.
+            Set<Integer> removedSet = new HashSet<>();
+            for (int i=0; i<k; i++) {
+                Assert.assertTrue(removed[i] >= 100 && removed[i] < 110);
+                Assert.assertTrue(removedSet.add(removed[i]));
+            }
+
+            // The pool must retain exactly the remaining lineages.
+            Assert.assertEquals(10 - k, pool.size());
+            Set<Integer> remainingSet = new HashSet<>();
+            for (int i=0; i<pool.size(); i++) {
+                Assert.assertFalse(removedSet.contains(pool.get(i)));
+                Assert.assertTrue(remainingSet.add(pool.get(i)));
+            }
+        }
+    }
+
+    @Test
+    public void testUniformSelection() {
+        RandomSource random = RandomSource.of(new SplittableRandom(2));
+
+        // Each of the 6 pairs of lineages from a pool of 4 should be
+        // selected with equal probability.
+        int nTrials = 60000;
+        int[][] pairCounts = new int[4][4];
+        int[] removed = new int[2];
+        for (int trial=0; trial<nTrials; trial++) {
+            LineagePool pool = new LineagePool(4);
+            for (int i=0; i<4; i++)
+                pool.add(i);
+
+            pool.removeRandom(2, removed, random);
+            pairCounts[Math.min(removed[0], removed[1])][Math.max(removed[0], removed[1])] += 1;
+        }
+
+        for (int i=0; i<4; i++) {
+            for (int j=i+1; j<4; j++)
+                Assert.assertEquals(nTrials/6.0, pairCounts[i][j], 0.03*nTrials/6.0);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2019. Tim Vaughan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pitchfork.models;
+
+import beast.base.evolution.tree.Node;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+public class MergerTreeTest {
+
+    private static MergerTree getTree() {
+        MergerTree tree = new MergerTree(new String[] {"A", "B", "C", "D"},
+                new double[] {0.0, 0.0, 0.5, 0.0});
+
+        int merger = tree.addMerger(new int[] {0, 1, 2}, 3, 1.0);
+        tree.addMerger(new int[] {merger, 3}, 2, 2.0);
+
+        return tree;
+    }
+
+    @Test
+    public void testNewick() throws IOException {
+        StringWriter writer = new StringWriter();
+        getTree().writeNewick(writer);
+
+        Assert.assertEquals("((A:1.0,B:1.0,C:0.5):1.0,D:2.0);", writer.toString());
+    }
+
+    @Test
+    public void testDeepTreeNewick() throws IOException {
+        int nLeaves = 100000;
+
+        String[] leafNames = new String[nLeaves];
+        for (int i=0; i<nLeaves; i++)
+            leafNames[i] = "t" + i;
+
+        MergerTree tree = new MergerTree(leafNames, new double[nLeaves]);
+
+        int[] lineages = new int[2];
+        for (int i=1; i<nLeaves; i++) {
+            lineages[0] = i;
+            lineages[1] = i == 1 ? 0 : nLeaves + i - 2;
+            tree.addMerger(lineages, 2, i);
+        }
+
+        StringWriter writer = new StringWriter();
+        tree.writeNewick(writer);
+
+        String newick = writer.toString();
+        Assert.assertTrue(newick.startsWith("(t" + (nLeaves-1) + ":" + (nLeaves-1.0)
+                + ",(t" + (nLeaves-2) + ":" + (nLeaves-2.0) + ","));
+        Assert.assertTrue(newick.contains("(t2:2.0,(t1:1.0,t0:1.0):1.0):1.0)"));
+        Assert.assertTrue(newick.endsWith(":1.0):1.0);"));
+    }
+
+    @Test
+    public void testNode() {
+        Node root = getTree().toNode();
+
+        Assert.assertEquals(2.0, root.getHeight(), 0.0);
+        Assert.assertEquals(4, root.getLeafNodeCount());
+        Assert.assertEquals(7, root.getNodeCount());
+
+        // The three-way merger is represented by two nodes joined by a
+        // zero-length edge.
+        Node merger = root.getChild(0);
+        Assert.assertEquals(1.0, merger.getHeight(), 0.0);
+        Assert.assertEquals(1.0, merger.getChild(0).getHeight(), 0.0);
+        Assert.assertEquals("C", merger.getChild(1).getID());
+        Assert.assertEquals(3, merger.getLeafNodeCount());
+    }
+}
@@ -21,6 +21,7 @@ import beast.base.evolution.alignment.Taxon;
 import beast.base.evolution.alignment.TaxonSet;
 import beast.base.evolution.tree.TraitSet;
 import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
 import beast.base.evolution.tree.coalescent.PopulationFunction;
 import beast.base.evolution.tree.coalescent.RandomTree;
 import beast.base.inference.parameter.RealParameter;
@@ -30,14 +31,19 @@ import pitchfork.PitchforkTestClass;
 import org.junit.Test;
 import test.beast.beast2vs1.trace.DiscreteStatistics;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.function.Function;
 
 public class SimulatedBetaCoalescentTreeTest extends PitchforkTestClass {
 
     private static SimulatedBetaCoalescentTree getSimulatedLambdaCoalescentTree(int nLeaves, double alpha,
-                                                                                PopulationFunction populationFunction) {
+                                                                                PopulationFunction populationFunction,
+                                                                                Object... extraInputs) {
 
         List<Taxon> taxonList = new ArrayList<>();
         StringBuilder traitValueBuilder = new StringBuilder();
@@ -62,11 +68,14 @@ public class SimulatedBetaCoalescentTreeTest extends PitchforkTestClass {
         lcModel.initByName("alpha", new RealParameter(String.valueOf(alpha)),
                 "taxonSet", taxonSet);
 
-        SimulatedBetaCoalescentTree tree = new SimulatedBetaCoalescentTree();
-        tree.initByName(
+        List<Object> inputs = new ArrayList<>(Arrays.asList(
                 "model", lcModel,
                 "populationFunction", populationFunction,
-                "trait", dateTrait);
+                "trait", dateTrait));
+        inputs.addAll(Arrays.asList(extraInputs));
+
+        SimulatedBetaCoalescentTree tree = new SimulatedBetaCoalescentTree();
+        tree.initByName(inputs.toArray());
 
         return tree;
     }
@@ -178,4 +187,34 @@ public class SimulatedBetaCoalescentTreeTest extends PitchforkTestClass {
         System.out.println("Variance (Kingman): " + kingmanVar);
         Assert.assertEquals(kingmanVar, var, kingmanVar*1e-2);
     }
+
+    @Test
+    public void testReplicatesIndependentOfThreadCount() throws IOException {
+        File singleThreadFile = File.createTempFile("replicates", ".trees");
+        File multiThreadFile = File.createTempFile("replicates", ".trees");
+        singleThreadFile.deleteOnExit();
+        multiThreadFile.deleteOnExit();
+
+        Tree singleThreadTree = getSimulatedLambdaCoalescentTree(20, 1.5,
+                getConstantPopulation(1.0),
+                "replicateCount", 500, "threadCount", 1, "seed", 42L,
+                "fileName", singleThreadFile.getPath());
+
+        getSimulatedLambdaCoalescentTree(20, 1.5,
+                getConstantPopulation(1.0),
+                "replicateCount", 500, "threadCount", 4, "seed", 42L,
+                "fileName", multiThreadFile.getPath());
+
+        List<String> singleThreadTrees = Files.readAllLines(singleThreadFile.toPath());
+        List<String> multiThreadTrees = Files.readAllLines(multiThreadFile.toPath());
+
+        Assert.assertEquals(500, singleThreadTrees.size());
+        Assert.assertEquals(singleThreadTrees, multiThreadTrees);
+
+        Tree firstTree = new TreeParser(singleThreadTrees.get(0),
+                false, false, true, 0);
+        Assert.assertEquals(singleThreadTree.getLeafNodeCount(), firstTree.getLeafNodeCount());
+        Assert.assertEquals(singleThreadTree.getRoot().getHeight(),
+                firstTree.getRoot().getHeight(), 1e-10);
+    }
 }
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2019. Tim Vaughan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package pitchfork.models;
+
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.TraitSet;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.distribution.Exponential;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import junit.framework.Assert;
+import pitchfork.PitchforkTestClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class SimulatedBetaSkylineTreeTest extends PitchforkTestClass {
+
+    private static SimulatedBetaSkylineTree getSimulatedSkylineTree(int nLeaves, double alpha,
+                                                                    Object... extraInputs) {
+
+        List<Taxon> taxonList = new ArrayList<>();
+        StringBuilder traitValueBuilder = new StringBuilder();
+
+        // Samples are spread over several times, so that mergers are
+        // interleaved with the sampling of further lineages.
+        for (int i=1; i<=nLeaves; i++) {
+            String id = "t" + i;
+            taxonList.add(new Taxon(id));
+
+            if (i>1)
+                traitValueBuilder.append(",");
+
+            traitValueBuilder.append(id).append("=").append(0.5*(i % 4));
+        }
+        TaxonSet taxonSet = new TaxonSet(taxonList);
+
+        TraitSet dateTrait = new TraitSet();
+        dateTrait.initByName( "traitname", "date-backward",
+                "taxa", taxonSet,
+                "value", traitValueBuilder.toString());
+
+        BetaCoalescentModel lcModel = new BetaCoalescentModel();
+        lcModel.initByName("alpha", new RealParameter(String.valueOf(alpha)),
+                "taxonSet", taxonSet);
+
+        Exponential popDistr = new Exponential();
+        popDistr.initByName("mean", new RealParameter("1.0"));
+
+        List<Object> inputs = new ArrayList<>(Arrays.asList(
+                "model", lcModel,
+                "skylinePopulations", new RealParameter("1.0 1.0 1.0"),
+                "skylinePopDistr", popDistr,
+                "trait", dateTrait));
+        inputs.addAll(Arrays.asList(extraInputs));
+
+        SimulatedBetaSkylineTree tree = new SimulatedBetaSkylineTree();
+        tree.initByName(inputs.toArray());
+
+        return tree;
+    }
+
+    @Test
+    public void testTreeComplete() {
+        Randomizer.setSeed(1);
+
+        SimulatedBetaSkylineTree tree = getSimulatedSkylineTree(20, 1.2);
+
+        for (int rep=0; rep<100; rep++) {
+            if (rep>0)
+                tree.initAndValidate();
+
+            // Every leaf must descend from the one root.
+            Node root = tree.getRoot();
+            Assert.assertEquals(20, root.getLeafNodeCount());
+            for (Node leaf : tree.getExternalNodes()) {
+                Node node = leaf;
+                while (!node.isRoot())
+                    node = node.getParent();
+
+                Assert.assertSame(root, node);
+            }
+
+            // Working back in time, each k-merger must replace k of the
+            // lineages present by one, leaving exactly one at the root.
+            List<Node> nodes = new ArrayList<>(root.getAllChildNodesAndSelf());
+            nodes.sort((a, b) -> Double.compare(a.getHeight(), b.getHeight()));
+
+            int lineageCount = 0;
+            for (Node node : nodes) {
+                if (node.isLeaf()) {
+                    lineageCount += 1;
+                } else {
+                    Assert.assertTrue(node.getChildCount() >= 2);
+                    Assert.assertTrue(node.getChildCount() <= lineageCount);
+                    lineageCount -= node.getChildCount() - 1;
+                }
+            }
+
+            Assert.assertEquals(1, lineageCount);
+        }
+    }
+
+    @Test
+    public void testReplicatesIndependentOfThreadCount() throws IOException {
+        File singleThreadFile = File.createTempFile("replicates", ".trees");
+        File multiThreadFile = File.createTempFile("replicates", ".trees");
+        singleThreadFile.deleteOnExit();
+        multiThreadFile.deleteOnExit();
+
+        SimulatedBetaSkylineTree singleThreadTree = getSimulatedSkylineTree(20, 1.5,
+                "replicateCount", 500, "threadCount", 1, "seed", 42L,
+                "fileName", singleThreadFile.getPath());
+
+        SimulatedBetaSkylineTree multiThreadTree = getSimulatedSkylineTree(20, 1.5,
+                "replicateCount", 500, "threadCount", 4, "seed", 42L,
+                "fileName", multiThreadFile.getPath());
+
+        List<String> singleThreadTrees = Files.readAllLines(singleThreadFile.toPath());
+        List<String> multiThreadTrees = Files.readAllLines(multiThreadFile.toPath());
+
+        Assert.assertEquals(500, singleThreadTrees.size());
+        Assert.assertEquals(singleThreadTrees, multiThreadTrees);
+
+        // The skyline population sizes drawn for the first replicate are
+        // assigned along with it.
+        RealParameter singleThreadPops = singleThreadTree.skylinePopulationsInput.get();
+        RealParameter multiThreadPops = multiThreadTree.skylinePopulationsInput.get();
+        for (int i=0; i<singleThreadPops.getDimension(); i++)
+            Assert.assertEquals(singleThreadPops.getArrayValue(i),
+                    multiThreadPops.getArrayValue(i), 0.0);
+
+        Tree firstTree = new TreeParser(singleThreadTrees.get(0),
+                false, false, true, 0);
+        Assert.assertEquals(singleThreadTree.getLeafNodeCount(), firstTree.getLeafNodeCount());
+        Assert.assertEquals(singleThreadTree.getRoot().getHeight(),
+                firstTree.getRoot().getHeight(), 1e-10);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2019. Tim Vaughan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pitchfork.models.pop;
+
+import beast.base.inference.parameter.RealParameter;
+import org.junit.Assert;
+import org.junit.Test;
+import pitchfork.PitchforkTestClass;
+
+public class PiecewisePopulationFunctionTest extends PitchforkTestClass {
+
+    @Test
+    public void testEvenlySpaced() {
+        // Test tree has root height 1.5, giving interval boundaries at
+        // 0.5 and 1.0.
+
+        PiecewisePopulationFunction evenPopFun = new PiecewisePopulationFunction();
+        evenPopFun.initByName("popSizes", new RealParameter("2.0 0.5 1.0"),
+                "tree", tree);
+
+        PiecewisePopulationFunction explicitPopFun = new PiecewisePopulationFunction();
+        explicitPopFun.initByName("popSizes", new RealParameter("2.0 0.5 1.0"),
+                "changeTimes", new RealParameter("0.5 1.0 1.5"));
+
+        for (double t : new double[] {0.0, 0.25, 0.5, 0.75, 1.0, 1.25, 1.5, 2.0}) {
+            Assert.assertEquals(explicitPopFun.getPopSize(t), evenPopFun.getPopSize(t), 0.0);
+            Assert.assertEquals(explicitPopFun.getIntensity(t), evenPopFun.getIntensity(t), 1e-14);
+
+            double x = explicitPopFun.getIntensity(t);
+            Assert.assertEquals(t, evenPopFun.getInverseIntensity(x), 1e-14);
+        }
+
+        Assert.assertEquals(0.5, evenPopFun.getPopSize(0.5), 0.0);
+        Assert.assertEquals(0.5/2.0 + 0.5/0.5 + 0.25/1.0, evenPopFun.getIntensity(1.25), 1e-14);
+    }
+
+    @Test
+    public void testIntervalIntegrals() {
+        PiecewisePopulationFunction popFun = new PiecewisePopulationFunction();
+        popFun.initByName("popSizes", new RealParameter("2.0 0.5 1.0"),
+                "tree", tree);
+
+        double[] endTimes = {0.2, 0.5, 0.6, 1.4, 1.5, 3.0};
+        int n = endTimes.length;
+
+        double[] integrals = new double[n], logPopSizes = new double[n];
+        double[] expectedIntegrals = new double[n], expectedLogPopSizes = new double[n];
+
+        popFun.getIntervalIntegrals(endTimes, 1, n, integrals, logPopSizes);
+        new BatchedPopulationFunctionAdapter(popFun).getIntervalIntegrals(endTimes, 1, n,
+                expectedIntegrals, expectedLogPopSizes);
+
+        for (int i=1; i<n; i++) {
+            Assert.assertEquals(expectedIntegrals[i], integrals[i], 1e-14);
+            Assert.assertEquals(expectedLogPopSizes[i], logPopSizes[i], 1e-14);
+        }
+    }
+
+    @Test
+    public void testParametersChangedOutsideMCMC() {
+        RealParameter popSizes = new RealParameter("2.0 0.5 1.0");
+        RealParameter changeTimes = new RealParameter("0.5 1.0 1.5");
+
+        PiecewisePopulationFunction popFun = new PiecewisePopulationFunction();
+        popFun.initByName("popSizes", popSizes, "changeTimes", changeTimes);
+
+        Assert.assertEquals(0.5/2.0 + 0.25/0.5, popFun.getIntensity(0.75), 1e-14);
+
+        // Neither change is signalled through requiresRecalculation().
+        popSizes.setValue(0, 4.0);
+        Assert.assertEquals(0.5/4.0 + 0.25/0.5, popFun.getIntensity(0.75), 1e-14);
+
+        changeTimes.setValue(0, 0.25);
+        Assert.assertEquals(0.25/4.0 + 0.5/0.5, popFun.getIntensity(0.75), 1e-14);
+        Assert.assertEquals(0.5, popFun.getPopSize(0.3), 0.0);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2019. Tim Vaughan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package pitchfork.operators;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.util.Randomizer;
+import org.junit.Assert;
+import org.junit.Test;
+import pitchfork.PitchforkTestClass;
+import pitchfork.Pitchforks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ExchangeOperatorTest extends PitchforkTestClass {
+
+    @Test
+    public void testWideExchangeSameLogicalParent() {
+        TreeParser starTree = new TreeParser("(A:1.0,B:1.0,C:1.0,D:1.0);",
+                false, false, true,0);
+        String newick = starTree.getRoot().toNewick();
+
+        ExchangeOperator operator = new ExchangeOperator();
+        operator.initByName("tree", starTree,
+                "isNarrow", false,
+                "weight", 1.0);
+
+        // Every pair of edges hangs from the same logical node, so no
+        // exchange changes the logical tree.
+        Randomizer.setSeed(1);
+        for (int i=0; i<100; i++) {
+            Assert.assertEquals(Double.NEGATIVE_INFINITY, operator.proposal(), 0.0);
+            operator.reject(0);
+        }
+
+        Assert.assertEquals(newick, starTree.getRoot().toNewick());
+    }
+
+    @Test
+    public void testWideExchangeProposals() {
+        TreeParser bigTree = new TreeParser(
+                "(((A:1.0,B:1.0,C:1.0):0.5,(D:0.7,E:0.3):0.3):1.0," +
+                        "((F:0.4,G:0.4):1.2,(H:0.2,I:0.3,J:0.8):0.5):0.9);",
+                false, false, true,0);
+
+        ExchangeOperator operator = new ExchangeOperator();
+        operator.initByName("tree", bigTree,
+                "isNarrow", false,
+                "weight", 1.0);
+
+        int nNodes = bigTree.getNodeCount();
+        int[] oldParentNrs = new int[nNodes];
+        int nAccepted = 0;
+
+        Randomizer.setSeed(1);
+        for (int i=0; i<1000; i++) {
+            int nTrueNodes = Pitchforks.getTrueNodes(bigTree).size();
+            for (int nodeNr=0; nodeNr<nNodes; nodeNr++) {
+                Node node = bigTree.getNode(nodeNr);
+                oldParentNrs[nodeNr] = node.isRoot() ? -1 : node.getParent().getNr();
+            }
+
+            bigTree.store();
+            double logHR = operator.proposal(null);
+
+            if (logHR == Double.NEGATIVE_INFINITY) {
+                operator.reject(0);
+                bigTree.restore();
+                continue;
+            }
+
+            // The move is symmetric as it leaves the true nodes unchanged.
+            Assert.assertEquals(0.0, logHR, 0.0);
+            Assert.assertEquals(nTrueNodes, Pitchforks.getTrueNodes(bigTree).size());
+
+            // Exchanging a node with its ancestor would detach part of the tree.
+            Assert.assertEquals(nNodes, bigTree.getRoot().getNodeCount());
+            Assert.assertEquals(10, bigTree.getRoot().getLeafNodeCount());
+
+            List<Node> movedNodes = new ArrayList<>();
+            for (int nodeNr=0; nodeNr<nNodes; nodeNr++) {
+                Node node = bigTree.getNode(nodeNr);
+                int parentNr = node.isRoot() ? -1 : node.getParent().getNr();
+                if (parentNr != oldParentNrs[nodeNr])
+                    movedNodes.add(node);
+            }
+            Assert.assertEquals(2, movedNodes.size());
+
+            for (Node node : movedNodes) {
+                Assert.assertTrue(Pitchforks.isLogicalNode(node));
+                Assert.assertTrue(Pitchforks.greaterWithPrecision(
+                        node.getParent().getHeight(), node.getHeight()));
+            }
+
+            Assert.assertNotSame(Pitchforks.getLogicalNode(movedNodes.get(0).getParent()),
+                    Pitchforks.getLogicalNode(movedNodes.get(1).getParent()));
+
+            operator.accept();
+            bigTree.setEverythingDirty(false);
+            nAccepted += 1;
+        }
+
+        Assert.assertTrue(nAccepted > 0);
+    }
+}
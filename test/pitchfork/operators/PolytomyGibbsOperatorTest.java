@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2019. Tim Vaughan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pitchfork.operators;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import org.junit.Assert;
+import org.junit.Test;
+import pitchfork.LogicalNodeIndex;
+import pitchfork.PitchforkTestClass;
+import pitchfork.Pitchforks;
+import pitchfork.models.BetaCoalescentDistribution;
+import pitchfork.models.BetaCoalescentModel;
+import pitchfork.models.CollapsedTreeIntervals;
+
+public class PolytomyGibbsOperatorTest extends PitchforkTestClass {
+
+    private BetaCoalescentDistribution getDistribution(Tree tree) {
+        BetaCoalescentModel bcModel = new BetaCoalescentModel();
+        bcModel.initByName("alpha", new RealParameter("1.5"),
+                "tree", tree);
+
+        CollapsedTreeIntervals treeIntervals = new CollapsedTreeIntervals();
+        treeIntervals.initByName("tree", tree);
+
+        BetaCoalescentDistribution distribution = new BetaCoalescentDistribution();
+        distribution.initByName("model", bcModel,
+                "collapsedTreeIntervals", treeIntervals,
+                "populationFunction", getConstantPopulation(2.0));
+
+        return distribution;
+    }
+
+    @Test
+    public void testHastingsRatio() {
+        TreeParser bigTree = new TreeParser(
+                "(((A:1.0,B:1.0,C:1.0):0.5,(D:0.7,E:0.3):0.3):1.0," +
+                        "((F:0.4,G:0.4):1.2,(H:0.2,I:0.3,J:0.8):0.5):0.9);",
+                false, false, true,0);
+
+        // Proposals are drawn from the conditional distribution under the
+        // prior, so the Hastings ratio should exactly cancel the change in
+        // the prior density.
+        for (int i=0; i<100; i++) {
+            double oldLogP = getDistribution(bigTree).calculateLogP();
+
+            PolytomyGibbsOperator operator = new PolytomyGibbsOperator();
+            operator.initByName("tree", bigTree,
+                    "distribution", getDistribution(bigTree),
+                    "weight", 1.0);
+
+            double logHR = operator.proposal();
+            operator.accept();
+
+            double newLogP = getDistribution(bigTree).calculateLogP();
+
+            Assert.assertEquals(0.0, logHR + newLogP - oldLogP, 1e-10);
+            Assert.assertEquals(10, bigTree.getRoot().getLeafNodeCount());
+        }
+    }
+
+    @Test
+    public void testIndexConsistency() {
+        TreeParser bigTree = new TreeParser(
+                "(((A:1.0,B:1.0,C:1.0):0.5,(D:0.7,E:0.3):0.3):1.0," +
+                        "((F:0.4,G:0.4):1.2,(H:0.2,I:0.3,J:0.8):0.5):0.9);",
+                false, false, true,0);
+
+        LogicalNodeIndex index = LogicalNodeIndex.getIndex(bigTree);
+
+        // Proposals which move the root renumber nodes, as Tree.setRoot()
+        // gives the new root the last node number.  The index is shared
+        // by all operators on the tree, so it must survive both these and
+        // the restores following rejected proposals.
+        Randomizer.setSeed(1);
+        int nRootChanges = 0;
+        for (int i=0; i<200; i++) {
+            PolytomyGibbsOperator operator = new PolytomyGibbsOperator();
+            operator.initByName("tree", bigTree,
+                    "distribution", getDistribution(bigTree),
+                    "weight", 1.0);
+
+            Node oldRoot = bigTree.getRoot();
+
+            bigTree.store();
+            double logHR = operator.proposal(null);
+
+            if (logHR == Double.NEGATIVE_INFINITY)
+                continue;
+
+            if (bigTree.getRoot() != oldRoot)
+                nRootChanges += 1;
+
+            Assert.assertEquals(Pitchforks.getTrueNodes(bigTree).size(), index.getTrueNodeCount());
+            for (Node node : bigTree.getNodesAsArray()) {
+                Assert.assertSame(Pitchforks.getLogicalNode(node), index.getLogicalNode(node));
+
+                if (Pitchforks.isLogicalNode(node)) {
+                    Assert.assertEquals(Pitchforks.getLogicalChildren(node).size(),
+                            index.getLogicalChildCount(node));
+
+                    for (int j=0; j<index.getLogicalChildCount(node); j++)
+                        Assert.assertTrue(Pitchforks.getLogicalChildren(node)
+                                .contains(index.getLogicalChild(node, j)));
+                }
+            }
+
+            if (Randomizer.nextBoolean()) {
+                operator.reject(0);
+                bigTree.restore();
+            } else {
+                operator.accept();
+                bigTree.setEverythingDirty(false);
+            }
+        }
+
+        Assert.assertTrue(nRootChanges > 0);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2019. Tim Vaughan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package pitchfork.operators;
+
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.util.Randomizer;
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class UniformOperatorTest {
+
+    @Test
+    public void testOptimize() {
+        Randomizer.setSeed(1);
+
+        // The root is the only internal node, so every proposal scales it.
+        Tree tree = new TreeParser("(A:1,B:1):0.0");
+
+        UniformOperator operator = new UniformOperator();
+        operator.initByName("tree", tree, "weight", 1.0);
+
+        // Accepting every proposal should widen the scaling range, moving
+        // the scale factor towards 0.
+        double scaleFactor = operator.getCoercableParameterValue();
+        for (int i=0; i<50; i++) {
+            operator.proposal();
+            operator.accept();
+            operator.optimize(0.0);
+
+            Assert.assertTrue(operator.getCoercableParameterValue() < scaleFactor);
+            scaleFactor = operator.getCoercableParameterValue();
+        }
+
+        // Rejecting every proposal should narrow it, moving the scale
+        // factor towards 1.
+        for (int i=0; i<50; i++) {
+            operator.proposal();
+            operator.reject(0);
+            operator.optimize(Double.NEGATIVE_INFINITY);
+
+            Assert.assertTrue(operator.getCoercableParameterValue() > scaleFactor);
+            scaleFactor = operator.getCoercableParameterValue();
+        }
+
+        Assert.assertTrue(scaleFactor > 0.0 && scaleFactor < 1.0);
+
+        // Half of all root proposals were accepted, well above the target.
+        Assert.assertFalse(operator.getPerformanceSuggestion().isEmpty());
+    }
+
+    @Test
+    public void testOptimizeIgnoresNonRootProposals() {
+        Randomizer.setSeed(1);
+
+        Tree tree = new TreeParser("((A:1,B:1):1,C:2):0.0");
+
+        UniformOperator operator = new UniformOperator();
+        operator.initByName("tree", tree,
+                "scaleRoot", false,
+                "weight", 1.0);
+
+        double scaleFactor = operator.getCoercableParameterValue();
+        for (int i=0; i<50; i++) {
+            operator.proposal();
+            operator.reject(0);
+            operator.optimize(Double.NEGATIVE_INFINITY);
+        }
+
+        Assert.assertEquals(scaleFactor, operator.getCoercableParameterValue());
+        Assert.assertEquals("", operator.getPerformanceSuggestion());
+    }
+}